@@ -0,0 +1,154 @@
+package io.github.doodle;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decode time and memory of downscaling a corpus of JPEGs,
+ * by density scaling only (the old path), and by subsampling then density scaling ({@link Decoder#setScale}).
+ * <p>
+ * Run on a device:
+ * <pre>
+ * ./gradlew :doodle:connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=io.github.doodle.DecodeCorpusBenchmark
+ * </pre>
+ * The corpus is generated into the cache dir (4000x3000, 2000x1500, 1024x768),
+ * pass "-Pandroid.testInstrumentationRunnerArguments.corpusDir=/sdcard/..." to decode the images of a directory instead.
+ * Results are printed to logcat with the tag "DecodeCorpusBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class DecodeCorpusBenchmark {
+    private static final String TAG = "DecodeCorpusBenchmark";
+    private static final int[] TARGETS = {200, 400, 1080};
+    private static final int[][] GENERATED_SIZES = {{4000, 3000}, {2000, 1500}, {1024, 768}};
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void compareScaling() throws Exception {
+        List<File> corpus = getCorpus();
+        Log.i(TAG, "image, target, density(ms), sampled(ms), density peak(KB), sampled peak(KB), result(KB)");
+        for (File file : corpus) {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), bounds);
+            int width = bounds.outWidth;
+            int height = bounds.outHeight;
+            int source = Math.min(width, height);
+            for (int target : TARGETS) {
+                if (target >= source) {
+                    continue;
+                }
+                Result density = measure(file, width, height, target, false);
+                Result sampled = measure(file, width, height, target, true);
+                Log.i(TAG, file.getName() + ", " + target
+                        + ", " + density.millis + ", " + sampled.millis
+                        + ", " + (density.peakBytes >> 10) + ", " + (sampled.peakBytes >> 10)
+                        + ", " + (sampled.resultBytes >> 10));
+            }
+        }
+    }
+
+    /**
+     * Scale the short side of the image to the target, as CENTER_CROP does.
+     */
+    private static Result measure(File file, int width, int height, int target, boolean subsample) {
+        int source = Math.min(width, height);
+        long[] times = new long[ROUNDS];
+        Result result = new Result();
+        for (int i = 0; i < ROUNDS; i++) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            if (subsample) {
+                Decoder.setScale(options, source, target);
+            } else {
+                options.inScaled = true;
+                options.inDensity = source;
+                options.inTargetDensity = target;
+            }
+            long start = SystemClock.elapsedRealtimeNanos();
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+            times[i] = SystemClock.elapsedRealtimeNanos() - start;
+            // The codec decodes the (subsampled) image, then draws it scaled into the result.
+            int sampleSize = Math.max(options.inSampleSize, 1);
+            long decodedBytes = (long) ((width + sampleSize - 1) / sampleSize)
+                    * ((height + sampleSize - 1) / sampleSize) * 4;
+            result.resultBytes = bitmap.getAllocationByteCount();
+            result.peakBytes = decodedBytes + result.resultBytes;
+            bitmap.recycle();
+        }
+        Arrays.sort(times);
+        result.millis = times[ROUNDS / 2] / 1000000f;
+        return result;
+    }
+
+    private static List<File> getCorpus() throws Exception {
+        List<File> corpus = new ArrayList<>();
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String corpusDir = arguments.getString("corpusDir");
+        if (corpusDir != null) {
+            File[] files = new File(corpusDir).listFiles();
+            if (files != null) {
+                corpus.addAll(Arrays.asList(files));
+            }
+            return corpus;
+        }
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File dir = new File(context.getCacheDir(), "corpus");
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalStateException("Can't create " + dir);
+        }
+        for (int[] size : GENERATED_SIZES) {
+            File file = new File(dir, size[0] + "x" + size[1] + ".jpg");
+            if (!file.exists()) {
+                generate(file, size[0], size[1]);
+            }
+            corpus.add(file);
+        }
+        return corpus;
+    }
+
+    private static void generate(File file, int width, int height) throws Exception {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, width, height, Color.RED, Color.BLUE, Shader.TileMode.MIRROR));
+        canvas.drawRect(0, 0, width, height, paint);
+        // Some details, or the codec compresses it too well.
+        paint.setShader(null);
+        for (int i = 0; i < 2000; i++) {
+            paint.setColor(Color.rgb(i * 37 % 256, i * 91 % 256, i * 13 % 256));
+            float x = (i * 7919) % width;
+            float y = (i * 104729) % height;
+            canvas.drawCircle(x, y, 5 + i % 40, paint);
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        }
+        bitmap.recycle();
+    }
+
+    private static class Result {
+        float millis;
+        long peakBytes;
+        long resultBytes;
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.doodle;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Latency and footprint of the raw-pixel results ({@link Request#encodeRaw()}) against the encoded results,
+ * all packed in the segments of a {@link DiskCache}, as small results are.
+ * <p>
+ * Run on a device:
+ * <pre>
+ * ./gradlew :doodle:connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=io.github.doodle.RawResultBenchmark
+ * </pre>
+ * For each size and format, logs the bytes on disk, the median time of encoding and restoring.
+ * Raw results are restored from the mapped slice of the segment (the shipped path),
+ * and from a heap copy of the slice, to show the cost of the copy.
+ * Results are printed to logcat with the tag "RawResultBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class RawResultBenchmark {
+    private static final String TAG = "RawResultBenchmark";
+    private static final int[] SIZES = {128, 256, 512};
+    private static final int ROUNDS = 9;
+
+    @Test
+    public void compareRawWithEncoded() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Config.cachePath = context.getCacheDir().getPath();
+        DiskCache cache = new DiskCache("/raw_benchmark/" + System.currentTimeMillis() + "/",
+                1000, 256L << 20, 2 << 20);
+
+        Bitmap.CompressFormat webp = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ?
+                Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+        Bitmap.CompressFormat[] formats = {Bitmap.CompressFormat.JPEG, Bitmap.CompressFormat.PNG, webp};
+
+        Log.i(TAG, "size, format, bytes, encode(ms), restore(ms)");
+        for (int size : SIZES) {
+            Bitmap bitmap = generate(size);
+            for (Bitmap.CompressFormat format : formats) {
+                measureEncoded(cache, bitmap, format);
+            }
+            measureRaw(cache, bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    private static void measureEncoded(DiskCache cache, Bitmap bitmap, Bitmap.CompressFormat format)
+            throws Exception {
+        int quality = format == Bitmap.CompressFormat.WEBP ? 100 : 95;
+        long[] encodeTimes = new long[ROUNDS];
+        byte[] data = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(format, quality, out);
+            data = out.toByteArray();
+            encodeTimes[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        CacheKey key = new CacheKey(bitmap.getWidth() + format.name());
+        cache.recordPacked(key, data, data.length, false, false);
+        DiskCache.CacheInfo info = cache.getCacheInfo(key);
+
+        long[] restoreTimes = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            byte[] packed = cache.readPacked(info);
+            Bitmap restored = Decoder.decodeBytes(packed, info.getLength(), Bitmap.Config.ARGB_8888);
+            restoreTimes[i] = SystemClock.elapsedRealtimeNanos() - start;
+            ByteArrayPool.recycleArray(packed);
+            restored.recycle();
+        }
+        log(bitmap.getWidth(), format.name(), data.length, encodeTimes, restoreTimes);
+    }
+
+    private static void measureRaw(DiskCache cache, Bitmap bitmap) throws Exception {
+        int len = RawPixels.getSize(bitmap);
+        byte[] data = new byte[len];
+        long[] encodeTimes = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            RawPixels.encode(bitmap, data);
+            encodeTimes[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        CacheKey key = new CacheKey(bitmap.getWidth() + "RAW");
+        cache.recordPacked(key, data, len, false, true);
+        DiskCache.CacheInfo info = cache.getCacheInfo(key);
+
+        long[] mappedTimes = new long[ROUNDS];
+        long[] copiedTimes = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            Bitmap restored = RawPixels.decode(cache.mapPacked(info));
+            mappedTimes[i] = SystemClock.elapsedRealtimeNanos() - start;
+            restored.recycle();
+
+            start = SystemClock.elapsedRealtimeNanos();
+            byte[] packed = cache.readPacked(info);
+            restored = RawPixels.decode(ByteBuffer.wrap(packed, 0, info.getLength()));
+            copiedTimes[i] = SystemClock.elapsedRealtimeNanos() - start;
+            ByteArrayPool.recycleArray(packed);
+            restored.recycle();
+        }
+        log(bitmap.getWidth(), "RAW(mapped)", len, encodeTimes, mappedTimes);
+        log(bitmap.getWidth(), "RAW(copied)", len, encodeTimes, copiedTimes);
+    }
+
+    private static void log(int size, String format, int bytes, long[] encodeTimes, long[] restoreTimes) {
+        Log.i(TAG, size + ", " + format + ", " + bytes + ", " + median(encodeTimes) + ", " + median(restoreTimes));
+    }
+
+    private static float median(long[] times) {
+        Arrays.sort(times);
+        return times[times.length / 2] / 1000000f;
+    }
+
+    private static Bitmap generate(int size) {
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, size, size, Color.RED, Color.BLUE, Shader.TileMode.MIRROR));
+        canvas.drawRect(0, 0, size, size, paint);
+        paint.setShader(null);
+        for (int i = 0; i < size / 2; i++) {
+            paint.setColor(Color.rgb(i * 37 % 256, i * 91 % 256, i * 13 % 256));
+            canvas.drawCircle((i * 7919) % size, (i * 104729) % size, 2 + i % 16, paint);
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.doodle;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of bitmaps to reuse their memory (by {@link android.graphics.BitmapFactory.Options#inBitmap},
+ * or drawing into them), reduce allocation and GC when scrolling.
+ * <p>
+ * Bitmaps are bucketed by config and bytes count.
+ * Only the bitmaps created and dropped by Doodle itself (intermediate bitmaps of decoding) are put here,
+ * the results may be still displayed or cached (even after they are evicted from LruCache),
+ * so they are never recycled into the pool.
+ */
+final class BitmapPool {
+    private static final long CAPACITY = Runtime.getRuntime().maxMemory() / 32;
+    // Don't reuse a bitmap much larger than needed, it wastes memory while the result lives.
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private static final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> buckets =
+            new EnumMap<>(Bitmap.Config.class);
+    // For evicting the eldest bitmap.
+    private static final LinkedList<Bitmap> order = new LinkedList<>();
+    private static long sum = 0;
+
+    static synchronized boolean contains(Bitmap.Config config) {
+        TreeMap<Integer, LinkedList<Bitmap>> bucket = config != null ? buckets.get(config) : null;
+        return bucket != null && !bucket.isEmpty();
+    }
+
+    /**
+     * Get a bitmap which could hold width x height pixels with the config.
+     * The bitmap's dimension is not changed, call {@link Bitmap#reconfigure} before drawing into it.
+     *
+     * @return bitmap or null if not found.
+     */
+    static synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (width <= 0 || height <= 0 || config == null) {
+            return null;
+        }
+        TreeMap<Integer, LinkedList<Bitmap>> bucket = buckets.get(config);
+        if (bucket == null) {
+            return null;
+        }
+        long size = (long) width * height * getBytesPerPixel(config);
+        if (size > Integer.MAX_VALUE) {
+            return null;
+        }
+        Map.Entry<Integer, LinkedList<Bitmap>> entry = bucket.ceilingEntry((int) size);
+        if (entry == null || entry.getKey() > size * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        LinkedList<Bitmap> list = entry.getValue();
+        Bitmap bitmap = list.removeLast();
+        if (list.isEmpty()) {
+            bucket.remove(entry.getKey());
+        }
+        order.remove(bitmap);
+        sum -= entry.getKey();
+        return bitmap;
+    }
+
+    /**
+     * The caller must make sure that the bitmap will not be used anymore.
+     */
+    static synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || !isPoolable(bitmap.getConfig())) {
+            return;
+        }
+        int bytesCount = Utils.getBytesCount(bitmap);
+        if (bytesCount <= 0 || bytesCount > CAPACITY / 4) {
+            return;
+        }
+        Bitmap.Config config = bitmap.getConfig();
+        TreeMap<Integer, LinkedList<Bitmap>> bucket = buckets.get(config);
+        if (bucket == null) {
+            bucket = new TreeMap<>();
+            buckets.put(config, bucket);
+        }
+        LinkedList<Bitmap> list = bucket.get(bytesCount);
+        if (list == null) {
+            list = new LinkedList<>();
+            bucket.put(bytesCount, list);
+        }
+        list.add(bitmap);
+        order.add(bitmap);
+        sum += bytesCount;
+        while (sum > CAPACITY) {
+            removeEldest();
+        }
+    }
+
+    private static void removeEldest() {
+        Bitmap bitmap = order.removeFirst();
+        int bytesCount = Utils.getBytesCount(bitmap);
+        TreeMap<Integer, LinkedList<Bitmap>> bucket = buckets.get(bitmap.getConfig());
+        LinkedList<Bitmap> list = bucket.get(bytesCount);
+        list.remove(bitmap);
+        if (list.isEmpty()) {
+            bucket.remove(bytesCount);
+        }
+        sum -= bytesCount;
+    }
+
+    static synchronized void clear() {
+        buckets.clear();
+        order.clear();
+        sum = 0;
+    }
+
+    private static boolean isPoolable(Bitmap.Config config) {
+        if (config == null) {
+            return false;
+        }
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.O || config != Bitmap.Config.HARDWARE;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.RGBA_F16) {
+            return 8;
+        }
+        return 4;
+    }
+}
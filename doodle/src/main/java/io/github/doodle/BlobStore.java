@@ -0,0 +1,298 @@
+package io.github.doodle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.github.doodle.enums.Durability;
+
+/**
+ * Append-only segment files, to pack small cache entries.
+ * <p>
+ * Entries share one file, saving an inode, an open and a fsync for each of them,
+ * and keeping the cache directory small to scan.
+ * An entry is located by 'location' (segment id in high 32 bits, offset in low 32 bits) and its length,
+ * both are kept in the journal of {@link DiskCache}.
+ * <p>
+ * Deleted entries leave dead bytes in segment,
+ * the segment is compacted by {@link DiskCache} when most of it is dead.
+ */
+final class BlobStore {
+    private static final String TAG = "BlobStore";
+
+    static final String SEGMENT_PREFIX = "segment_";
+    private static final int SEGMENT_SIZE = 4 << 20;
+
+    private final String dirPath;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private Segment active;
+
+    BlobStore(String dirPath) {
+        this.dirPath = dirPath;
+    }
+
+    static boolean isSegment(String name) {
+        return name.startsWith(SEGMENT_PREFIX);
+    }
+
+    static int getSegmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int getOffset(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Open the segments which have live entries.
+     * <p>
+     * The active segment (the last one) may have no live entry,
+     * so probe the following ids.
+     */
+    synchronized void open(Set<Integer> ids) {
+        int maxId = 0;
+        for (int id : ids) {
+            if (openSegment(id) && id > maxId) {
+                maxId = id;
+            }
+        }
+        while (openSegment(maxId + 1)) {
+            maxId++;
+        }
+        Segment last = segments.get(maxId);
+        if (last != null && last.length < SEGMENT_SIZE) {
+            active = last;
+        }
+    }
+
+    private boolean openSegment(int id) {
+        if (id <= 0) {
+            return false;
+        }
+        File file = new File(dirPath, SEGMENT_PREFIX + id);
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            segments.put(id, new Segment(id, file));
+            return true;
+        } catch (IOException e) {
+            LogProxy.e(TAG, e);
+            return false;
+        }
+    }
+
+    boolean isOpened(String name) {
+        try {
+            return segments.containsKey(Integer.parseInt(name.substring(SEGMENT_PREFIX.length())));
+        } catch (Exception ignore) {
+            return false;
+        }
+    }
+
+    /**
+     * @return location of the data
+     */
+    synchronized long append(byte[] data, int len) throws IOException {
+        if (active == null || active.length + len > SEGMENT_SIZE) {
+            int id = active != null ? active.id + 1 : getMaxId() + 1;
+            File file = new File(dirPath, SEGMENT_PREFIX + id);
+            if (!Utils.makeFileIfNotExist(file)) {
+                throw new IOException("Create segment failed");
+            }
+            Segment segment = new Segment(id, file);
+            segments.put(id, segment);
+            active = segment;
+        }
+        Segment segment = active;
+        long offset = segment.length;
+        ByteBuffer src = ByteBuffer.wrap(data, 0, len);
+        while (src.hasRemaining()) {
+            segment.channel.write(src, offset + src.position());
+        }
+        if (Config.durability == Durability.PER_FILE) {
+            segment.channel.force(false);
+        } else {
+            segment.unsynced = true;
+        }
+        segment.length += len;
+        return ((long) segment.id << 32) | offset;
+    }
+
+    /**
+     * Force the segments appended since the last sync, for group commit.
+     */
+    synchronized void sync() {
+        for (Segment segment : segments.values()) {
+            if (segment.unsynced && !segment.closed) {
+                try {
+                    segment.channel.force(false);
+                    segment.unsynced = false;
+                } catch (IOException e) {
+                    LogProxy.e(TAG, e);
+                }
+            }
+        }
+    }
+
+    private int getMaxId() {
+        int maxId = 0;
+        for (Integer id : segments.keySet()) {
+            if (id > maxId) {
+                maxId = id;
+            }
+        }
+        return maxId;
+    }
+
+    /**
+     * Read data to a buffer from {@link ByteArrayPool}, the caller should recycle the buffer.
+     *
+     * @return the buffer, or null if the segment had been removed (the entry may be moved by compaction).
+     */
+    byte[] read(long location, int len) throws IOException {
+        Segment segment = segments.get(getSegmentId(location));
+        if (segment == null) {
+            return null;
+        }
+        ReentrantReadWriteLock.ReadLock readLock = segment.lock.readLock();
+        readLock.lock();
+        try {
+            if (segment.closed) {
+                return null;
+            }
+            int offset = getOffset(location);
+            if (offset < 0 || offset + len > segment.length) {
+                throw new IOException("Invalid location");
+            }
+            byte[] buffer = ByteArrayPool.getArray(len);
+            ByteBuffer dst = ByteBuffer.wrap(buffer, 0, len);
+            while (dst.hasRemaining()) {
+                if (segment.channel.read(dst, offset + dst.position()) < 0) {
+                    ByteArrayPool.recycleArray(buffer);
+                    throw new IOException("Unexpected end of segment");
+                }
+            }
+            return buffer;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Map the data read-only, the data is not copied to the java heap.
+     * The mapping stays valid after the segment is removed.
+     *
+     * @return the buffer, or null if the segment had been removed (the entry may be moved by compaction).
+     */
+    ByteBuffer map(long location, int len) throws IOException {
+        Segment segment = segments.get(getSegmentId(location));
+        if (segment == null) {
+            return null;
+        }
+        ReentrantReadWriteLock.ReadLock readLock = segment.lock.readLock();
+        readLock.lock();
+        try {
+            if (segment.closed) {
+                return null;
+            }
+            int offset = getOffset(location);
+            if (offset < 0 || offset + len > segment.length) {
+                throw new IOException("Invalid location");
+            }
+            return segment.channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    boolean contains(long location, int len) {
+        Segment segment = segments.get(getSegmentId(location));
+        int offset = getOffset(location);
+        return segment != null && offset >= 0 && offset + len <= segment.length;
+    }
+
+    /**
+     * Mark the entry be dead.
+     *
+     * @return true if the segment is sealed and most of it is dead, which should be compacted.
+     */
+    synchronized boolean release(long location, int len) {
+        Segment segment = segments.get(getSegmentId(location));
+        if (segment == null) {
+            return false;
+        }
+        segment.deadBytes += len;
+        return needToCompact(segment);
+    }
+
+    private boolean needToCompact(Segment segment) {
+        return segment != active && segment.deadBytes * 2 >= segment.length;
+    }
+
+    /**
+     * Count dead bytes with live bytes (from journal) when opening.
+     *
+     * @return ids of segments which should be compacted.
+     */
+    synchronized int[] initDeadBytes(Map<Integer, Long> liveBytes) {
+        int[] ids = new int[segments.size()];
+        int n = 0;
+        for (Segment segment : segments.values()) {
+            Long live = liveBytes.get(segment.id);
+            segment.deadBytes = segment.length - (live != null ? live : 0L);
+            if (needToCompact(segment)) {
+                ids[n++] = segment.id;
+            }
+        }
+        int[] result = new int[n];
+        System.arraycopy(ids, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * Close and delete the segment, the live entries should had been moved out.
+     */
+    void remove(int segmentId) {
+        Segment segment = segments.remove(segmentId);
+        if (segment == null) {
+            return;
+        }
+        ReentrantReadWriteLock.WriteLock writeLock = segment.lock.writeLock();
+        writeLock.lock();
+        try {
+            segment.closed = true;
+            Utils.closeQuietly(segment.accessFile);
+            Utils.deleteQuietly(segment.file);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile accessFile;
+        final FileChannel channel;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        volatile long length;
+        volatile boolean closed = false;
+        long deadBytes;
+        // Guarded by the store
+        boolean unsynced = false;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            accessFile = new RandomAccessFile(file, "rw");
+            channel = accessFile.getChannel();
+            length = accessFile.length();
+        }
+    }
+}
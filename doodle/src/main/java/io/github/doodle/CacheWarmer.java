@@ -0,0 +1,55 @@
+package io.github.doodle;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Load the journals of disk caches in background at process start,
+ * so that the first loading task doesn't have to wait for them.
+ * <p>
+ * The disk caches read the configs when they are created,
+ * so the loading is posted to the main thread, to run after the app finishes configuring
+ * (normally in {@link android.app.Application#onCreate()}).
+ */
+final class CacheWarmer {
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+    private static final CountDownLatch latch = new CountDownLatch(1);
+
+    static void start() {
+        if (!Config.warmUp || Utils.appContext == null) {
+            return;
+        }
+        new Handler(Looper.getMainLooper()).post(() -> {
+            if (started.compareAndSet(false, true)) {
+                Scheduler.maintainExecutor.execute(CacheWarmer::warmUp);
+            }
+        });
+    }
+
+    private static void warmUp() {
+        try {
+            Worker.warmUpCache();
+            Downloader.sourceCache.warmUp();
+        } catch (Throwable e) {
+            LogProxy.e("Doodle", e);
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    static boolean await(long timeout) {
+        if (!Config.warmUp) {
+            return false;
+        }
+        try {
+            return latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package io.github.doodle;
 
 import android.graphics.Bitmap;
 
+import io.github.doodle.enums.Durability;
+import io.github.doodle.enums.MemoryCachePolicy;
 import io.github.doodle.interfaces.*;
 
 import java.util.concurrent.*;
@@ -14,10 +16,18 @@ public final class Config {
     static String cachePath;
     static int resultMaxCount = 8192;
     static long resultCapacity = 128L << 20;
+    static int resultPackThreshold = 0;
+    static volatile boolean warmUp = false;
     static int sourceMaxCount = 4096;
     static long sourceCapacity = 256L << 20;
+    static long sourceTtl = 0L;
+    static Durability durability = Durability.PER_FILE;
+    static long prefetchBytesPerMinute = 16L << 20;
+    static int prefetchConcurrency = 2;
     static long memoryCacheCapacity = Runtime.getRuntime().maxMemory() / 6;
+    static MemoryCachePolicy memoryCachePolicy = MemoryCachePolicy.LRU;
     static Bitmap.CompressFormat defaultCompressFormat;
+    static ResultCachePolicy resultCachePolicy;
     static HttpSourceFetcher httpSourceFetcher;
     static List<DataParser> dataParsers;
     static List<AnimatedDecoder> animatedDecoders;
@@ -40,6 +50,49 @@ public final class Config {
         return this;
     }
 
+    /**
+     * Set the bounds of concurrency window for computation tasks (decoding from local or cache).
+     * The window adapts to the throughput between the bounds,
+     * set min equal to max to fix the window.
+     * <p>
+     * Default: min is 2, max is max(cpu count, 4) .
+     */
+    public Config setComputeWindow(int min, int max) {
+        checkWindow(min, max);
+        Scheduler.cpExecutor.setWindowBounds(min, max);
+        return this;
+    }
+
+    /**
+     * Set the bounds of concurrency window for tasks with downloading.
+     * <p>
+     * Default: min is 4, max is 16.
+     *
+     * @see #setComputeWindow(int, int)
+     */
+    public Config setIoWindow(int min, int max) {
+        checkWindow(min, max);
+        Scheduler.ioExecutor.setWindowBounds(min, max);
+        return this;
+    }
+
+    /**
+     * Set the max number of downloading tasks per host, so that a slow host can't take all the window.
+     * Waiting tasks of different hosts start in round-robin order.
+     * <p>
+     * Default: 6, 0 for no limit.
+     */
+    public Config setHostLimit(int limit) {
+        Scheduler.ioExecutor.setHostLimit(limit);
+        return this;
+    }
+
+    private static void checkWindow(int min, int max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Invalid window bounds");
+        }
+    }
+
     public Config setLogger(DLogger logger) {
         LogProxy.register(logger);
         return this;
@@ -103,6 +156,55 @@ public final class Config {
         return this;
     }
 
+    /**
+     * Pack the result caches which smaller than the threshold into shared segment files,
+     * instead of saving each of them as a single file.
+     * For thumbnails, it saves inodes, open/fsync calls, and the time of scanning cache directory.
+     *
+     * @param threshold size in bytes, zero or negative to disable packing (default).
+     *                  For thumbnails, 32K (32 << 10) is a proper value.
+     * @return Config
+     */
+    public Config setResultPackThreshold(int threshold) {
+        resultPackThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Set the policy to decide whether to save a result to the result cache.
+     * By default there is no policy, all results are saved.
+     * {@link CostAwarePolicy#INSTANCE} skips the results which are faster to rebuild than to load from cache (twice at least).
+     * <p>
+     * With a policy, results are encoded to memory before saving, to see the encoded bytes.
+     *
+     * @param policy the policy, null to save all results (default).
+     * @return Config
+     */
+    public Config setResultCachePolicy(ResultCachePolicy policy) {
+        resultCachePolicy = policy;
+        return this;
+    }
+
+    /**
+     * Load the journals of disk caches in background at process start,
+     * to shorten the time to the first image.
+     * <p>
+     * The loading starts after the current main thread message,
+     * so the other cache configs in the same place still take effect.
+     * <ul>
+     * <li>Called in Application.attachBaseContext (before the content providers are created),
+     * the loading starts right after the process start, the earliest.</li>
+     * <li>Called in Application.onCreate (or later), the loading starts after onCreate returns.</li>
+     * </ul>
+     * Configure the disk caches (cache path, capacities, durability) before or in the same place.
+     * Use {@link Doodle#awaitWarm(long)} to wait for it.
+     */
+    public Config setWarmUp(boolean enable) {
+        warmUp = enable;
+        CacheWarmer.start();
+        return this;
+    }
+
     public Config setSourceMaxCount(int maxCount) {
         sourceMaxCount = maxCount;
         return this;
@@ -116,6 +218,44 @@ public final class Config {
         return this;
     }
 
+    /**
+     * Set the default time to live of the source cache (for http sources), 0 (never revalidate) by default.
+     * <p>
+     * When a cached source is older than the ttl, it's still served immediately,
+     * and revalidated in background with "If-None-Match" / "If-Modified-Since".
+     * If the source had been changed, it's replaced, and the next loading gets the new image.
+     *
+     * @param ttl in milliseconds.
+     * @see Request#sourceTtl(long)
+     */
+    public Config setSourceTtl(long ttl) {
+        sourceTtl = ttl;
+        return this;
+    }
+
+    /**
+     * Set when to sync the files of disk caches, {@link Durability#PER_FILE} by default.
+     */
+    public Config setDurability(Durability mode) {
+        if (mode != null) {
+            durability = mode;
+        }
+        return this;
+    }
+
+    /**
+     * Set the budget of prefetching, 16MB per minute and 2 in flight by default.
+     *
+     * @param bytesPerMinute bytes to download by prefetching per minute, 0 for no limit.
+     * @param maxConcurrent  maximum number of prefetches in flight.
+     * @see Request#prefetch()
+     */
+    public Config setPrefetchBudget(long bytesPerMinute, int maxConcurrent) {
+        prefetchBytesPerMinute = Math.max(bytesPerMinute, 0L);
+        prefetchConcurrency = Math.max(maxConcurrent, 1);
+        return this;
+    }
+
     public Config setMemoryCacheCapacity(long capacity) {
         if (capacity <= (Runtime.getRuntime().maxMemory() / 2)) {
             memoryCacheCapacity = capacity;
@@ -123,6 +263,17 @@ public final class Config {
         return this;
     }
 
+    /**
+     * Set the replacement policy of memory cache, {@link MemoryCachePolicy#LRU} by default.
+     * It should be set before loading any image, it doesn't change after the memory cache created.
+     */
+    public Config setMemoryCachePolicy(MemoryCachePolicy policy) {
+        if (policy != null) {
+            memoryCachePolicy = policy;
+        }
+        return this;
+    }
+
     /**
      * Set default compress format.
      * This config will be default value of {@link Request#compressFormat}.
@@ -4,6 +4,8 @@ import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.*;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.view.View;
 import android.view.animation.Animation;
@@ -13,8 +15,10 @@ import android.widget.ImageView;
 import io.github.doodle.interfaces.CustomView;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.LinkedHashMap;
+import java.util.List;
 
 /**
  * Task Controller.
@@ -29,10 +33,18 @@ final class Controller {
 
     private static final AttachListener attachListener = new AttachListener();
 
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    // Requests waiting for the index of source cache, keyed by view (the last one wins), or by itself without view.
+    private static final LinkedHashMap<Object, Request> deferredRequests = new LinkedHashMap<>();
+
     static void pause() {
         pauseFlag = true;
     }
 
+    static boolean isPaused() {
+        return pauseFlag;
+    }
+
     static void resume() {
         if (pauseFlag) {
             pauseFlag = false;
@@ -54,13 +66,15 @@ final class Controller {
     }
 
     /**
+     * @param compareKey false if the key of the request can't be built yet (see {@link #needDefer(Request)}),
+     *                   then the previous request is always canceled.
      * @return true if the ImageView has already bound a same request.
      */
-    private static boolean checkTag(Request request, View view) {
+    private static boolean checkTag(Request request, View view, boolean compareKey) {
         Object tag = view.getTag(R.id.doodle_view_tag);
         if (tag instanceof Request) {
             Request preRequest = (Request) tag;
-            if (request.getKey().equals(preRequest.getKey())) {
+            if (compareKey && request.getKey().equals(preRequest.getKey())) {
                 return true;
             } else {
                 WeakReference<View> viewRef = preRequest.viewReference;
@@ -89,7 +103,7 @@ final class Controller {
         }
     }
 
-    private static View prepareView(Request request) {
+    private static View prepareView(Request request, boolean compareKey) {
         View view = request.viewReference.get();
         if (view != null) {
             Activity activity = Utils.pickActivity(view);
@@ -100,7 +114,7 @@ final class Controller {
             if (request.hostHash == 0) {
                 request.hostHash = System.identityHashCode(activity);
             }
-            if (checkTag(request, view)) {
+            if (checkTag(request, view, compareKey)) {
                 return null;
             }
             if (!request.keepOriginal) {
@@ -116,6 +130,11 @@ final class Controller {
     }
 
     static void clear(View view) {
+        if (!deferredRequests.isEmpty()) {
+            synchronized (deferredRequests) {
+                deferredRequests.remove(view);
+            }
+        }
         Object tag = view.getTag(R.id.doodle_view_tag);
         if (tag instanceof Request) {
             cancelTask((Request) tag);
@@ -123,19 +142,109 @@ final class Controller {
         }
     }
 
-    static void start(Request request) {
+    /**
+     * The key of http source contains the generation of the source (see {@link Downloader#getGeneration(String)}),
+     * which is known after the index of source cache loaded.
+     * Before that, the requests on main thread are deferred, and the index is loaded in background.
+     * On other threads (or waiting for the result), the index is loaded when building the key.
+     *
+     * @return true if the request should be deferred.
+     */
+    private static boolean needDefer(Request request) {
+        return !TextUtils.isEmpty(request.path) && request.path.startsWith("http")
+                && request.waiter == null && Looper.myLooper() == Looper.getMainLooper()
+                && !Downloader.isGenerationKnown();
+    }
+
+    /**
+     * Defer the request (its view has been prepared), and load the index of source cache if not loading.
+     */
+    private static void defer(Request request, View view) {
+        boolean first;
+        synchronized (deferredRequests) {
+            first = deferredRequests.isEmpty();
+            deferredRequests.put(view != null ? view : request, request);
+        }
+        if (first) {
+            Scheduler.cpExecutor.execute(() -> {
+                try {
+                    Downloader.getGeneration(request.path);
+                } catch (Throwable e) {
+                    LogProxy.e(TAG, e);
+                }
+                sHandler.post(Controller::startDeferred);
+            });
+        }
+    }
+
+    private static void startDeferred() {
+        List<Request> list;
+        synchronized (deferredRequests) {
+            list = new ArrayList<>(deferredRequests.values());
+            deferredRequests.clear();
+        }
+        for (Request request : list) {
+            try {
+                View view = null;
+                if (request.viewReference != null) {
+                    // The view has been prepared when deferring, and not bound to other request since then.
+                    view = request.viewReference.get();
+                    Activity activity = view != null ? Utils.pickActivity(view) : null;
+                    if (activity == null || activity.isFinishing() || activity.isDestroyed()) {
+                        continue;
+                    }
+                }
+                load(request, view);
+            } catch (Throwable e) {
+                LogProxy.e(TAG, e);
+            }
+        }
+    }
+
+    /**
+     * @return the worker started, null if the loading finished, or no worker needed, or deferred.
+     */
+    static Worker start(Request request) {
+        boolean deferring = needDefer(request);
         View view = null;
         if (request.viewReference != null) {
-            view = prepareView(request);
+            view = prepareView(request, !deferring);
             if (view == null) {
-                return;
+                return null;
+            }
+            if (!deferring && !deferredRequests.isEmpty()) {
+                // The view is bound to another request.
+                synchronized (deferredRequests) {
+                    deferredRequests.remove(view);
+                }
             }
         }
+        if (deferring) {
+            if (view != null) {
+                setPlaceholder(request, view);
+            }
+            defer(request, view);
+            return null;
+        }
+        return load(request, view);
+    }
 
+    /**
+     * Load the request whose view (if any) has been prepared.
+     */
+    private static Worker load(Request request, View view) {
         // If source is invalid, just callback and return
         if (TextUtils.isEmpty(request.path)) {
             abort(request, view);
-            return;
+            return null;
+        }
+
+        if (view != null || request.waiter != null) {
+            Prefetcher.markUsed(request.path);
+        }
+
+        if (request.sourceTtl > 0 && request.path.startsWith("http")) {
+            Downloader.checkStale(request.path, request.sourceTtl);
         }
 
         Bitmap bitmap = MemoryCache.getBitmap(request.getKey());
@@ -143,18 +252,18 @@ final class Controller {
         final Request.Waiter waiter = request.waiter;
         if (waiter != null && (bitmap != null || waiter.timeout == 0)) {
             waiter.result = bitmap;
-            return;
+            return null;
         }
 
         if (bitmap == null) {
             Object result = MemoryCache.resultWeakCache.get(request.getKey());
             if (result != null) {
                 setResult(request, view, result, true);
-                return;
+                return null;
             }
         } else {
             setResult(request, view, bitmap, true);
-            return;
+            return null;
         }
 
         if (view != null) {
@@ -167,7 +276,7 @@ final class Controller {
 
         if (view != null && pauseFlag) {
             cacheRequest(request, view);
-            return;
+            return null;
         }
 
         boolean needDownloading = request.path.startsWith("http")
@@ -184,6 +293,7 @@ final class Controller {
                 worker.cancel(true);
             }
         }
+        return worker;
     }
 
     private static void abort(Request request, View view) {
@@ -342,7 +452,7 @@ final class Controller {
         setDrawable(view, getDrawable(request.errorDrawable, request.errorId));
     }
 
-    private static void setBitmap(View view, Bitmap bitmap) {
+    static void setBitmap(View view, Bitmap bitmap) {
         if (bitmap != null) {
             if (view instanceof ImageView) {
                 ((ImageView) view).setImageBitmap(bitmap);
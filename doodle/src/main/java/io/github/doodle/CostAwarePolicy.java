@@ -0,0 +1,31 @@
+package io.github.doodle;
+
+import io.github.doodle.interfaces.ResultCachePolicy;
+
+/**
+ * A {@link ResultCachePolicy}, enable it by {@code Config.setResultCachePolicy(CostAwarePolicy.INSTANCE)}.
+ * <p>
+ * Save the result if rebuilding it takes more than twice the time of loading it from the result cache,
+ * where the loading time is estimated by the bytes to read and to decode.
+ * Results which are fast to rebuild (like small images from local files) are not worth the writing,
+ * results with downloading or heavy decoding are always saved.
+ * <p>
+ * The loading speeds are rough estimates, not measured on the running device.
+ */
+public final class CostAwarePolicy implements ResultCachePolicy {
+    public static final CostAwarePolicy INSTANCE = new CostAwarePolicy();
+
+    // Rough speed of reading and decoding on mid-range devices, bytes per millisecond.
+    private static final int ENCODED_BYTES_PER_MS = 20 << 10;
+    private static final int BITMAP_BYTES_PER_MS = 100 << 10;
+    private static final float MIN_GAIN = 2f;
+
+    private CostAwarePolicy() {
+    }
+
+    @Override
+    public boolean shouldSave(String path, long buildTime, int bitmapBytes, int encodedBytes) {
+        float loadTime = 1f + (float) encodedBytes / ENCODED_BYTES_PER_MS + (float) bitmapBytes / BITMAP_BYTES_PER_MS;
+        return buildTime >= loadTime * MIN_GAIN;
+    }
+}
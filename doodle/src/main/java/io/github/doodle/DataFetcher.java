@@ -42,6 +42,9 @@ class DataFetcher implements Closeable {
     private final String path;
     private final DataLoader loader;
     final boolean fromSourceCache;
+    // Key of source cache if the data is read from it
+    private CacheKey cacheKey;
+    private DiskCache.Metadata metadata;
 
     private MediaType mediaType;
     private byte[] header;
@@ -56,6 +59,7 @@ class DataFetcher implements Closeable {
     static DataFetcher parse(Request request) throws IOException {
         DataLoader loader;
         boolean fromSourceCache = false;
+        CacheKey cacheKey = null;
         String path = request.path;
         if (path.startsWith("http")) {
             CacheKey key = new CacheKey(path);
@@ -63,12 +67,14 @@ class DataFetcher implements Closeable {
             if (cachePath != null) {
                 loader = new FileLoader(new File(cachePath));
                 fromSourceCache = true;
+                cacheKey = key;
             } else {
                 if (request.onlyIfCached) {
                     throw new IOException("No cache");
                 }
                 if (request.diskCacheStrategy.savaSource()) {
                     loader = new FileLoader(Downloader.download(path, key));
+                    cacheKey = key;
                 } else {
                     loader = new StreamLoader(path, Downloader.getInputStream(path), null);
                 }
@@ -86,7 +92,9 @@ class DataFetcher implements Closeable {
                 loader = new StreamLoader(path, Utils.getContentResolver().openInputStream(uri), uri);
             }
         }
-        return new DataFetcher(path, loader, fromSourceCache);
+        DataFetcher fetcher = new DataFetcher(path, loader, fromSourceCache);
+        fetcher.cacheKey = cacheKey;
+        return fetcher;
     }
 
     private static InputStream handleByDataParsers(String path) {
@@ -108,11 +116,27 @@ class DataFetcher implements Closeable {
 
     byte[] getData() throws IOException {
         if (data == null) {
-            data = loader.loadData();
+            PooledBytes bytes = loader.loadData();
+            try {
+                data = bytes.toArray();
+            } finally {
+                bytes.recycle();
+            }
         }
         return data;
     }
 
+    /**
+     * Like {@link #getData()}, but not to trim the buffer (a copy), for the data used only once.
+     * The caller should recycle it.
+     */
+    PooledBytes getPooledData() throws IOException {
+        if (data != null) {
+            return new PooledBytes(data, data.length, false);
+        }
+        return loader.loadData();
+    }
+
     byte[] getHeader() throws IOException {
         if (header == null) {
             header = new byte[HEADER_LEN];
@@ -127,11 +151,32 @@ class DataFetcher implements Closeable {
 
     MediaType getMediaType() throws IOException {
         if (mediaType == null) {
-            mediaType = MediaTypeParser.parse(getHeader());
+            DiskCache.Metadata meta = getMetadata();
+            mediaType = meta != null ? meta.mediaType : MediaTypeParser.parse(getHeader());
         }
         return mediaType;
     }
 
+    /**
+     * @return metadata of source image recorded in source cache, null if not recorded.
+     */
+    DiskCache.Metadata getMetadata() {
+        if (metadata == null && cacheKey != null) {
+            metadata = Downloader.getMetadata(cacheKey);
+        }
+        return metadata;
+    }
+
+    /**
+     * Record metadata of source image to source cache, so that the next decoding could skip reading them.
+     */
+    void saveMetadata(int width, int height, int orientation) throws IOException {
+        if (cacheKey != null && getMetadata() == null && width > 0 && height > 0) {
+            metadata = new DiskCache.Metadata(width, height, orientation, getMediaType());
+            Downloader.putMetadata(cacheKey, metadata);
+        }
+    }
+
     String getFilePath() {
         return (loader instanceof FileLoader) ? ((FileLoader) loader).filePath : null;
     }
@@ -206,7 +251,7 @@ class DataFetcher implements Closeable {
     }
 
     interface DataLoader extends Closeable {
-        byte[] loadData() throws IOException;
+        PooledBytes loadData() throws IOException;
 
         void loadHeader(byte[] header) throws IOException;
 
@@ -249,8 +294,8 @@ class DataFetcher implements Closeable {
         }
 
         @Override
-        public byte[] loadData() throws IOException {
-            byte[] bytes = Utils.streamToBytes(new FileInputStream(fd));
+        public PooledBytes loadData() throws IOException {
+            PooledBytes bytes = Utils.streamToPooledBytes(new FileInputStream(fd));
             accessFile.seek(0);
             return bytes;
         }
@@ -262,7 +307,13 @@ class DataFetcher implements Closeable {
                 accessFile.seek(0L);
                 return null;
             }
-            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+            try {
+                return BitmapFactory.decodeFileDescriptor(fd, null, options);
+            } catch (IllegalArgumentException e) {
+                // Failed to decode into options.inBitmap, rewind to decode again.
+                accessFile.seek(0L);
+                throw e;
+            }
         }
 
         @Override
@@ -323,9 +374,9 @@ class DataFetcher implements Closeable {
         }
 
         @Override
-        public byte[] loadData() throws IOException {
+        public PooledBytes loadData() throws IOException {
             inputStream.mark(Integer.MAX_VALUE);
-            byte[] bytes = Utils.streamToBytes(inputStream);
+            PooledBytes bytes = Utils.streamToPooledBytes(inputStream);
             reset();
             return bytes;
         }
@@ -338,11 +389,30 @@ class DataFetcher implements Closeable {
                 reset();
                 return null;
             }
+            if (options.inBitmap != null) {
+                inputStream.mark(Integer.MAX_VALUE);
+                try {
+                    return BitmapFactory.decodeStream(inputStream, null, options);
+                } catch (IllegalArgumentException e) {
+                    // Failed to decode into options.inBitmap, rewind to decode again.
+                    reset();
+                    throw e;
+                }
+            }
             return BitmapFactory.decodeStream(inputStream, null, options);
         }
 
         @Override
         public Bitmap loadBitmap(Rect rect, BitmapFactory.Options options) throws IOException {
+            if (options.inBitmap != null) {
+                inputStream.mark(Integer.MAX_VALUE);
+                try {
+                    return BitmapRegionDecoder.newInstance(inputStream, false).decodeRegion(rect, options);
+                } catch (IllegalArgumentException e) {
+                    reset();
+                    throw e;
+                }
+            }
             return BitmapRegionDecoder.newInstance(inputStream, false).decodeRegion(rect, options);
         }
 
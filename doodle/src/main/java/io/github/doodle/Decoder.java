@@ -3,7 +3,10 @@ package io.github.doodle;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.media.MediaMetadataRetriever;
 import android.os.Build;
@@ -23,13 +26,100 @@ import io.github.doodle.enums.ClipType;
 final class Decoder {
     private static final String TAG = "Decoder";
 
-    static Bitmap decodeFile(String path, Bitmap.Config config) {
+    static Bitmap decodeFile(String path, Bitmap.Config config) throws IOException {
+        return decodeResult(options -> BitmapFactory.decodeFile(path, options), config);
+    }
+
+    static Bitmap decodeBytes(byte[] data, int length, Bitmap.Config config) throws IOException {
+        return decodeResult(options -> BitmapFactory.decodeByteArray(data, 0, length, options), config);
+    }
+
+    private static Bitmap decodeResult(BitmapLoader loader, Bitmap.Config config) throws IOException {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inPreferredConfig = config;
         if (options.inPreferredConfig == Bitmap.Config.RGB_565) {
             options.inDither = true;
         }
-        return BitmapFactory.decodeFile(path, options);
+        if (!BitmapPool.contains(config)) {
+            return loader.load(options);
+        }
+        // Decoding bounds of result cache is cheap (it's small), worth to reuse a bitmap.
+        options.inJustDecodeBounds = true;
+        loader.load(options);
+        options.inJustDecodeBounds = false;
+        return decodeReusing(loader, options, options.outWidth, options.outHeight);
+    }
+
+    /**
+     * Decode into a bitmap from {@link BitmapPool} if there is a proper one.
+     * If failed to decode into it, decode again without it.
+     * <p>
+     * The pooled bitmap may be larger than the result, it's reconfigured to the result's size first,
+     * since BitmapRegionDecoder decodes into the top-left of it and doesn't resize it.
+     */
+    private static Bitmap decodeReusing(BitmapLoader loader, BitmapFactory.Options options,
+                                        int width, int height) throws IOException {
+        Bitmap reused = BitmapPool.get(width, height, options.inPreferredConfig);
+        if (reused == null) {
+            return loader.load(options);
+        }
+        if (reused.getWidth() != width || reused.getHeight() != height) {
+            try {
+                reused.reconfigure(width, height, options.inPreferredConfig);
+            } catch (IllegalArgumentException e) {
+                BitmapPool.put(reused);
+                return loader.load(options);
+            }
+        }
+        options.inBitmap = reused;
+        options.inMutable = true;
+        Bitmap bitmap = null;
+        try {
+            bitmap = loader.load(options);
+        } catch (IllegalArgumentException e) {
+            // Some formats (or old versions of system) don't support decoding into the bitmap.
+            if (LogProxy.isDebug()) {
+                Log.d(TAG, "Reuse bitmap failed: " + e.getMessage());
+            }
+        } finally {
+            options.inBitmap = null;
+        }
+        if (bitmap == reused) {
+            return bitmap;
+        }
+        BitmapPool.put(reused);
+        return bitmap != null ? bitmap : loader.load(options);
+    }
+
+    /**
+     * Scale source to target by subsampling (power of two) at first,
+     * which makes the codec skip pixels, saving the memory and time of decoding the full image,
+     * and then scale the remainder by density.
+     */
+    static void setScale(BitmapFactory.Options options, int source, int target) {
+        int sampleSize = 1;
+        while (source / (sampleSize << 1) >= target) {
+            sampleSize <<= 1;
+        }
+        options.inSampleSize = sampleSize;
+        // Scale factor of density applies to the subsampled size,
+        // set it to target * sampleSize / source, so the result is target whatever the codec rounds.
+        int targetDensity = target * sampleSize;
+        if (targetDensity != source) {
+            options.inScaled = true;
+            options.inDensity = source;
+            options.inTargetDensity = targetDensity;
+        }
+    }
+
+    private static int getScaledSize(int size, BitmapFactory.Options options) {
+        if (options.inSampleSize > 1) {
+            size = (size + options.inSampleSize - 1) / options.inSampleSize;
+        }
+        if (options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0) {
+            return (int) (size * ((float) options.inTargetDensity / options.inDensity) + 0.5f);
+        }
+        return size;
     }
 
     static Bitmap decode(DataFetcher dataFetcher, Request request) throws IOException {
@@ -40,6 +130,8 @@ final class Decoder {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inScaled = false;
         options.inMutable = true;
+        // Size and orientation recorded in source cache, if any, saving the reading of them.
+        DiskCache.Metadata metadata = dataFetcher.getMetadata();
         DecodeFormat format = request.decodeFormat;
         if (format != null) {
             boolean isRGB565 = (format == DecodeFormat.RGB_565) ||
@@ -51,21 +143,27 @@ final class Decoder {
             }
         }
         int orientation = ExifHelper.ORIENTATION_UNDEFINED;
-        boolean rotated = false;
-        if (dataFetcher.possiblyExif()) {
+        if (metadata != null) {
+            orientation = metadata.orientation;
+        } else if (dataFetcher.possiblyExif()) {
             orientation = dataFetcher.getOrientation();
-            // orientation in [5,8] means rotate 90 or 270 degrees
-            rotated = orientation >= ExifHelper.ORIENTATION_TRANSPOSE;
         }
+        // orientation in [5,8] means rotate 90 or 270 degrees
+        boolean rotated = orientation >= ExifHelper.ORIENTATION_TRANSPOSE;
 
         ClipType clipType = request.clipType == ClipType.NOT_SET ? ClipType.NO_CLIP : request.clipType;
         if (clipType != ClipType.NO_CLIP) {
-            options.inJustDecodeBounds = true;
-            dataFetcher.decode(options);
+            if (metadata != null) {
+                options.outWidth = metadata.width;
+                options.outHeight = metadata.height;
+            } else {
+                options.inJustDecodeBounds = true;
+                dataFetcher.decode(options);
+                options.inJustDecodeBounds = false;
+            }
             if (options.outWidth <= 0 || options.outHeight <= 0) {
                 clipType = ClipType.NO_CLIP;
             }
-            options.inJustDecodeBounds = false;
         }
 
         int sourceWidth = options.outWidth;
@@ -84,7 +182,7 @@ final class Decoder {
                     int right = Math.min(sourceWidth, targetWidth);
                     int bottom = Math.min(sourceHeight, targetHeight);
                     Rect rect = new Rect(0, 0, right, bottom);
-                    bitmap = dataFetcher.decodeRegion(rect, options);
+                    bitmap = decodeReusing(o -> dataFetcher.decodeRegion(rect, o), options, right, bottom);
                 } else {
                     bitmap = dataFetcher.decode(options);
                 }
@@ -107,7 +205,8 @@ final class Decoder {
                         bottom = sourceHeight;
                     }
                     Rect rect = new Rect(left, top, right, bottom);
-                    bitmap = dataFetcher.decodeRegion(rect, options);
+                    bitmap = decodeReusing(o -> dataFetcher.decodeRegion(rect, o), options,
+                            right - left, bottom - top);
                 } else {
                     bitmap = dataFetcher.decode(options);
                 }
@@ -115,20 +214,17 @@ final class Decoder {
             case CENTER_CROP:
                 if (sourceWidth * targetHeight > targetWidth * sourceHeight) {
                     if (request.enableUpscale ? sourceHeight != targetHeight : sourceHeight > targetHeight) {
-                        options.inScaled = true;
-                        options.inTargetDensity = targetHeight;
-                        options.inDensity = sourceHeight;
+                        setScale(options, sourceHeight, targetHeight);
                     }
                 } else {
                     if (request.enableUpscale ? sourceWidth != targetWidth : sourceWidth > targetWidth) {
-                        options.inScaled = true;
-                        options.inTargetDensity = targetWidth;
-                        options.inDensity = sourceWidth;
+                        setScale(options, sourceWidth, targetWidth);
                     }
                 }
-                bitmap = dataFetcher.decode(options);
+                bitmap = decodeReusing(dataFetcher::decode, options,
+                        getScaledSize(sourceWidth, options), getScaledSize(sourceHeight, options));
                 if (bitmap != null) {
-                    bitmap = centerCrop(bitmap, targetWidth, targetHeight);
+                    bitmap = recycleSource(bitmap, centerCrop(bitmap, targetWidth, targetHeight));
                 }
                 break;
             default:
@@ -137,18 +233,15 @@ final class Decoder {
                 boolean enableUpscale = request.enableUpscale;
                 if (sourceWidth * targetHeight > targetWidth * sourceHeight) {
                     if ((centerInside || !enableUpscale) ? sourceWidth > targetWidth : sourceWidth != targetWidth) {
-                        options.inScaled = true;
-                        options.inTargetDensity = targetWidth;
-                        options.inDensity = sourceWidth;
+                        setScale(options, sourceWidth, targetWidth);
                     }
                 } else {
                     if ((centerInside || !enableUpscale) ? sourceHeight > targetHeight : sourceHeight != targetHeight) {
-                        options.inScaled = true;
-                        options.inTargetDensity = targetHeight;
-                        options.inDensity = sourceHeight;
+                        setScale(options, sourceHeight, targetHeight);
                     }
                 }
-                bitmap = dataFetcher.decode(options);
+                bitmap = decodeReusing(dataFetcher::decode, options,
+                        getScaledSize(sourceWidth, options), getScaledSize(sourceHeight, options));
                 break;
         }
 
@@ -156,8 +249,17 @@ final class Decoder {
             throw new IllegalArgumentException("Not support to decode the file: " + dataFetcher.getMediaType());
         }
 
+        if (metadata == null) {
+            // Without clipping, the bitmap is decoded in the source size.
+            if (clipType == ClipType.NO_CLIP) {
+                dataFetcher.saveMetadata(bitmap.getWidth(), bitmap.getHeight(), orientation);
+            } else {
+                dataFetcher.saveMetadata(sourceWidth, sourceHeight, orientation);
+            }
+        }
+
         if (orientation > ExifHelper.ORIENTATION_NORMAL) {
-            bitmap = ExifHelper.rotateImage(bitmap, orientation);
+            bitmap = recycleSource(bitmap, ExifHelper.rotateImage(bitmap, orientation));
         }
 
         if (LogProxy.isDebug()) {
@@ -225,7 +327,8 @@ final class Decoder {
             if (bitmap == null) {
                 bitmap = retriever.getFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
             }
-            bitmap = handleScaleAndCrop(bitmap, request);
+            // The frame is created by us, it could be reused after scaling.
+            bitmap = handleScaleAndCrop(bitmap, request, true);
             if (LogProxy.isDebug()) {
                 logResult(bitmap, request, sourceWidth, sourceHeight);
             }
@@ -243,6 +346,14 @@ final class Decoder {
     }
 
     static Bitmap handleScaleAndCrop(Bitmap bitmap, Request request) {
+        return handleScaleAndCrop(bitmap, request, false);
+    }
+
+    /**
+     * @param ownSource true if the source bitmap is created by us and not used by others,
+     *                  then it could be put to {@link BitmapPool} when it is replaced.
+     */
+    static Bitmap handleScaleAndCrop(Bitmap bitmap, Request request, boolean ownSource) {
         if (bitmap == null) {
             return null;
         }
@@ -257,12 +368,14 @@ final class Decoder {
             final int sourceHeight = bitmap.getHeight();
             float scale = getScale(sourceWidth, sourceHeight, targetWidth, targetHeight, clipType, request.enableUpscale);
             if (scale != 1f) {
-                Matrix matrix = new Matrix();
-                matrix.postScale(scale, scale);
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, sourceWidth, sourceHeight, matrix, true);
+                Bitmap scaled = scaleBitmap(bitmap, scale);
+                bitmap = ownSource ? recycleSource(bitmap, scaled) : scaled;
+                // The scaled bitmap is created by us.
+                ownSource = true;
             }
             if (bitmap != null && clipType == ClipType.CENTER_CROP) {
-                bitmap = centerCrop(bitmap, targetWidth, targetHeight);
+                Bitmap cropped = centerCrop(bitmap, targetWidth, targetHeight);
+                bitmap = ownSource ? recycleSource(bitmap, cropped) : cropped;
             }
         }
         return bitmap;
@@ -275,17 +388,81 @@ final class Decoder {
         if (d > 0) {
             float dx = (bw - targetWidth * bh / (float) targetHeight) * 0.5f;
             if (dx > 0 && (2 * dx) < bw) {
-                bitmap = Bitmap.createBitmap(bitmap, Math.round(dx), 0, Math.round(bw - 2 * dx), bh);
+                bitmap = cropBitmap(bitmap, Math.round(dx), 0, Math.round(bw - 2 * dx), bh);
             }
         } else if (d < 0) {
             float dy = (bh - targetHeight * bw / (float) targetWidth) * 0.5f;
             if (dy > 0 && (2 * dy) < bh) {
-                bitmap = Bitmap.createBitmap(bitmap, 0, Math.round(dy), bw, Math.round(bh - 2 * dy));
+                bitmap = cropBitmap(bitmap, 0, Math.round(dy), bw, Math.round(bh - 2 * dy));
             }
         }
         return bitmap;
     }
 
+    private static Bitmap scaleBitmap(Bitmap source, float scale) {
+        int sw = source.getWidth();
+        int sh = source.getHeight();
+        int w = Math.round(sw * scale);
+        int h = Math.round(sh * scale);
+        Bitmap target = obtainBitmap(source, w, h);
+        if (target == null) {
+            Matrix matrix = new Matrix();
+            matrix.postScale(scale, scale);
+            return Bitmap.createBitmap(source, 0, 0, sw, sh, matrix, true);
+        }
+        drawBitmap(source, new Rect(0, 0, sw, sh), target);
+        return target;
+    }
+
+    private static Bitmap cropBitmap(Bitmap source, int x, int y, int width, int height) {
+        Bitmap target = obtainBitmap(source, width, height);
+        if (target == null) {
+            return Bitmap.createBitmap(source, x, y, width, height);
+        }
+        drawBitmap(source, new Rect(x, y, x + width, y + height), target);
+        return target;
+    }
+
+    /**
+     * Get a bitmap from {@link BitmapPool} and reconfigure it to the size.
+     */
+    private static Bitmap obtainBitmap(Bitmap source, int width, int height) {
+        Bitmap.Config config = source.getConfig();
+        Bitmap bitmap = BitmapPool.get(width, height, config);
+        if (bitmap != null) {
+            try {
+                bitmap.reconfigure(width, height, config);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            bitmap.eraseColor(Color.TRANSPARENT);
+            bitmap.setHasAlpha(source.hasAlpha());
+            bitmap.setDensity(source.getDensity());
+        }
+        return bitmap;
+    }
+
+    private static void drawBitmap(Bitmap source, Rect src, Bitmap target) {
+        Canvas canvas = new Canvas(target);
+        Rect dst = new Rect(0, 0, target.getWidth(), target.getHeight());
+        canvas.drawBitmap(source, src, dst, new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        canvas.setBitmap(null);
+    }
+
+    /**
+     * Put the source to {@link BitmapPool} if it's replaced by the result.
+     */
+    private static Bitmap recycleSource(Bitmap source, Bitmap result) {
+        if (result != null && result != source) {
+            BitmapPool.put(source);
+        }
+        return result;
+    }
+
+    private interface BitmapLoader {
+        Bitmap load(BitmapFactory.Options options) throws IOException;
+    }
+
     static float getScale(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight,
                                   ClipType clipType, boolean enableUpscale) {
         if (sourceWidth <= 0 || sourceHeight <= 0 || targetWidth <= 0 || targetHeight <= 0) {
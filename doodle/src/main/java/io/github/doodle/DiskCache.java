@@ -3,113 +3,665 @@ package io.github.doodle;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+import io.github.doodle.enums.Durability;
+import io.github.doodle.enums.MediaType;
 
 /**
  * Disk caches manager.
  * Support limit files count and total size,
  * when caches out of limit, remove the "Least Recently Used".
+ * <p>
+ * Lookups read the index without locking,
+ * writers (record, delete, eviction) serialize on the journal lock,
+ * and eviction runs on {@link Scheduler#maintainExecutor}, so lookups never wait for it.
+ * <p>
+ * If 'packThreshold' is positive, entries smaller than it are packed into {@link BlobStore}
+ * instead of one file per key.
+ * <p>
+ * Metadata of entries (like size of source image) could be attached by {@link #putMetadata},
+ * they are kept in a side table (created when the first one is put), not to grow the journal records.
+ * HTTP validators of sources are kept in another side table with variable length records, see {@link #putValidator}.
+ * <p>
+ * Files and journal are synced according to {@link Config#setDurability}.
+ * For group commit, the files recorded are synced together before the journal is marked clean,
+ * if the system crashes before that, the dirty journal is reconciled at next start,
+ * records of missing or truncated files are dropped.
+ * Records loaded from the journal are also checked against the files at their first lookups,
+ * as a torn record may pass for a valid one before reconciling (or in a journal marked clean).
  */
 final class DiskCache {
     private static final String TAG = "DiskCache";
 
     private static final String JOURNAL_NAME = "journal";
     private static final byte[] HEADER = new byte[]{0x64, 0x69, 0x73, 0x6B};
-    private static final int VERSION = 1;
-    private static final int DATA_START = 8;
+    private static final int VERSION = 3;
+    private static final int STATE_OFFSET = 8;
+    private static final int DATA_START = 16;
     private static final int PAGE_SIZE = 4096;
 
-    // key: 16 bytes, order: 4 bytes, extra: 4 bytes.
-    private static final int RECORD_SIZE = 24;
+    // State of journal, clean means that the journal matches the files in directory.
+    private static final int STATE_DIRTY = 0;
+    private static final int STATE_CLEAN = 1;
+
+    private static final int RECONCILE_BATCH = 256;
+
+    // key: 16 bytes, order: 4 bytes, extra: 4 bytes, location: 8 bytes.
+    private static final int RECORD_SIZE = 32;
+
+    private static final String METADATA_NAME = "metadata";
+    private static final byte[] METADATA_HEADER = new byte[]{0x6D, 0x65, 0x74, 0x61};
+    private static final int METADATA_VERSION = 1;
+    private static final int METADATA_START = 8;
+    // key: 16 bytes, file length: 4 bytes, width: 4 bytes, height: 4 bytes, orientation: 2 bytes, media type: 2 bytes.
+    private static final int METADATA_RECORD_SIZE = 32;
+
+    private static final String VALIDATORS_NAME = "validators";
+    private static final byte[] VALIDATORS_HEADER = new byte[]{0x76, 0x61, 0x6C, 0x64};
+    private static final int VALIDATORS_VERSION = 1;
+    private static final int VALIDATORS_START = 8;
+    // key: 16 bytes, file length: 4 bytes, fetch time: 8 bytes, generation: 4 bytes,
+    // then ETag and Last-Modified, each is a 2 bytes length and UTF-8 bytes.
+    private static final int VALIDATOR_FIXED_SIZE = 36;
+    private static final int MAX_VALIDATOR_LENGTH = 1024;
+    // Validators of the removed entries, to keep the generation monotonic when the source is downloaded again.
+    private static final int MAX_RETIRED_VALIDATORS = 1024;
+
+    // Renumber the orders when rewriting the journal if they grow too large.
+    private static final int MAX_ORDER = 1 << 30;
+
+    private static final long GROUP_COMMIT_DELAY = 1000L;
+
+    // Partial data and validator of interrupted downloads, see Downloader#download
+    static final String PARTIAL_SUFFIX = ".part";
+    static final String VALIDATOR_SUFFIX = ".part.v";
+    static final long PARTIAL_MAX_AGE = 24 * 3600 * 1000L;
 
     private final String cachePath;
     private final int maxCount;
     private final long capacity;
+    private final int packThreshold;
+
+    // Index of records, reading without lock.
+    private final Map<CacheKey, Record> journal = new ConcurrentHashMap<>();
+    private final AtomicInteger accessOrder = new AtomicInteger(1);
+    private final AtomicBoolean trimScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean checkpointScheduled = new AtomicBoolean(false);
+
+    // Guard the journal file (buffer, journalEnd, offset of records) and 'sum'.
+    // Readers only try to acquire it (to write back access order), they never wait for it.
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private volatile boolean loaded = false;
+    private volatile boolean available = false;
+    private volatile boolean needReconcile = false;
     private long sum = 0;
-    private int accessOrder = 1;
+    private boolean clean;
+    private int editCount = 0;
+    private long loadTime;
 
     private FileChannel channel;
     private MappedByteBuffer buffer;
-    private Map<CacheKey, Record> journal;
     private int journalEnd;
+    private BlobStore blobStore;
+
+    // Guarded by journalLock
+    private FileChannel metadataChannel;
+    private long metadataEnd;
+    // Files recorded but not synced yet (group commit)
+    private final List<String> unsyncedFiles = new ArrayList<>();
+    private FileChannel validatorsChannel;
+    private long validatorsEnd;
+    private int validatorCount;
+    private final Map<CacheKey, Validator> retiredValidators =
+            new LinkedHashMap<CacheKey, Validator>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, Validator> eldest) {
+                    return size() > MAX_RETIRED_VALIDATORS;
+                }
+            };
 
     DiskCache(String relativePath, int maxCount, long capacity) {
+        this(relativePath, maxCount, capacity, 0);
+    }
+
+    DiskCache(String relativePath, int maxCount, long capacity, int packThreshold) {
         this.cachePath = Utils.getCachePath() + relativePath;
         this.maxCount = maxCount;
         this.capacity = capacity;
+        this.packThreshold = packThreshold;
     }
 
     String keyToPath(CacheKey key) {
         return cachePath + key.toHex();
     }
 
-    synchronized String getPath(CacheKey key) {
-        if (!checkJournal()) return null;
+    String getPath(CacheKey key) {
         Record record = getRecord(key);
-        return record != null ? keyToPath(key) : null;
+        return record != null && record.location == 0 ? keyToPath(key) : null;
     }
 
-    synchronized CacheInfo getCacheInfo(CacheKey key) {
-        if (!checkJournal()) return null;
+    CacheInfo getCacheInfo(CacheKey key) {
         Record record = getRecord(key);
-        return record != null ? new CacheInfo(keyToPath(key), record.isRGB565()) : null;
+        return record != null ? new CacheInfo(keyToPath(key), record) : null;
+    }
+
+    /**
+     * @return metadata of the entry, null if the entry not exist or the metadata not put.
+     */
+    Metadata getMetadata(CacheKey key) {
+        if (!checkJournal()) return null;
+        Record record = journal.get(key);
+        return record != null ? record.metadata : null;
+    }
+
+    /**
+     * Attach metadata to the entry, it's removed with the entry.
+     * The side table is not forced to disk, metadata may be lost when the system crashes,
+     * which is fine since it could be put again.
+     */
+    void putMetadata(CacheKey key, Metadata metadata) {
+        if (!checkJournal()) return;
+        journalLock.lock();
+        try {
+            Record record = journal.get(key);
+            if (record == null || record.metadata != null) {
+                return;
+            }
+            record.metadata = metadata;
+            if (metadataChannel == null && !openMetadata()) {
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(METADATA_RECORD_SIZE);
+            putMetadataRecord(buf, record);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                metadataChannel.write(buf, metadataEnd + buf.position());
+            }
+            metadataEnd += METADATA_RECORD_SIZE;
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Lookup without loading the journal, could be called on main thread.
+     *
+     * @return validator of the entry, null if the journal not loaded, or the entry not exist, or the validator not put.
+     */
+    Validator peekValidator(CacheKey key) {
+        if (!loaded || !available) return null;
+        Record record = journal.get(key);
+        return record != null ? record.validator : null;
+    }
+
+    /**
+     * Load the journal if not loaded, don't call it on main thread.
+     *
+     * @return validator of the entry, or the last one of the removed entry (kept for a while),
+     * null if not found.
+     */
+    Validator getLastValidator(CacheKey key) {
+        if (!checkJournal()) return null;
+        Record record = journal.get(key);
+        Validator validator = record != null ? record.validator : null;
+        if (validator == null) {
+            journalLock.lock();
+            try {
+                validator = retiredValidators.get(key);
+            } finally {
+                journalLock.unlock();
+            }
+        }
+        return validator;
+    }
+
+    /**
+     * @return true if the journal has been loaded (or the cache is disabled),
+     * then the lookups don't block.
+     */
+    boolean isLoaded() {
+        return loaded || capacity <= 0 || maxCount <= 0;
+    }
+
+    /**
+     * Attach (or replace) the validator of the entry.
+     * It's retired with the entry when removing (see {@link #getLastValidator(CacheKey)}).
+     * Like metadata, the side table is not forced to disk.
+     */
+    void putValidator(CacheKey key, Validator validator) {
+        if (!checkJournal()) return;
+        journalLock.lock();
+        try {
+            Record record = journal.get(key);
+            if (record == null) {
+                return;
+            }
+            record.validator = validator;
+            retiredValidators.remove(key);
+            if (validatorsChannel == null && !openValidators()) {
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(getValidatorSize(validator));
+            putValidatorRecord(buf, key, record.getFileSize(), validator);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                validatorsChannel.write(buf, validatorsEnd + buf.position());
+            }
+            validatorsEnd += buf.limit();
+            validatorCount++;
+            // Most records are replaced or dead, compact the table.
+            if (validatorsEnd > PAGE_SIZE && validatorCount > (journal.size() + retiredValidators.size()) * 2) {
+                rewriteValidators();
+            }
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Load the journal ahead of time, see {@link CacheWarmer}.
+     */
+    void warmUp() {
+        checkJournal();
+    }
+
+    boolean isPackable(int len) {
+        return packThreshold > 0 && len < packThreshold;
     }
 
-    synchronized boolean needToSave(CacheKey key) {
-        return (checkJournal()) && !journal.containsKey(key);
+    /**
+     * Read the packed entry to a buffer from {@link ByteArrayPool}, the caller should recycle the buffer.
+     *
+     * @return the buffer, or null if the entry had been removed.
+     */
+    byte[] readPacked(CacheInfo info) throws IOException {
+        Record record = info.record;
+        // The entry may be moved by compaction while reading, in that case read again with the new location.
+        for (int i = 0; i < 2; i++) {
+            long location = record.location;
+            if (location == 0 || blobStore == null) {
+                return null;
+            }
+            byte[] data = blobStore.read(location, record.getFileSize());
+            if (data != null) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Map the packed entry read-only, for reading without copy (like raw pixels).
+     *
+     * @return the buffer, or null if the entry had been removed.
+     */
+    ByteBuffer mapPacked(CacheInfo info) throws IOException {
+        Record record = info.record;
+        for (int i = 0; i < 2; i++) {
+            long location = record.location;
+            if (location == 0 || blobStore == null) {
+                return null;
+            }
+            ByteBuffer buffer = blobStore.map(location, record.getFileSize());
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    void recordPacked(CacheKey key, byte[] data, int len, boolean isRGB565, boolean isRaw) {
+        if (!checkJournal() || blobStore == null || key.h1 == 0 && key.h2 == 0) {
+            return;
+        }
+        try {
+            long location = blobStore.append(data, len);
+            boolean recorded = false;
+            journalLock.lock();
+            try {
+                if (!journal.containsKey(key) && len < capacity) {
+                    markDirty();
+                    append(key, len, isRGB565, isRaw, location);
+                    checkSize();
+                    recorded = true;
+                }
+            } finally {
+                journalLock.unlock();
+            }
+            if (!recorded) {
+                release(location, len);
+            }
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        }
+    }
+
+    boolean needToSave(CacheKey key) {
+        return checkJournal() && !journal.containsKey(key);
     }
 
     /**
      * Only check if exist record from cache(Map)
      */
-    synchronized boolean hasRecord(CacheKey key){
-        return journal != null && journal.containsKey(key);
+    boolean hasRecord(CacheKey key) {
+        return loaded && journal.containsKey(key);
     }
 
-    synchronized void record(CacheKey key, File file, boolean isRGB565) {
+    void record(CacheKey key, File file, boolean isRGB565) {
+        record(key, file, isRGB565, false);
+    }
+
+    void record(CacheKey key, File file, boolean isRGB565, boolean isRaw) {
         if (!checkJournal()) return;
         if (key.h1 == 0 && key.h2 == 0) {
             return;
         }
+        journalLock.lock();
         try {
-            Record record = getRecord(key);
-            if (record == null && file.exists()) {
+            if (!journal.containsKey(key) && file.exists()) {
                 long fileLen = file.length();
-                if (fileLen > 0 && fileLen < capacity && fileLen <= Integer.MAX_VALUE) {
-                    append(key, (int) fileLen, isRGB565);
+                if (fileLen > 0 && fileLen < capacity && fileLen <= Record.FILE_LEN_MASK) {
+                    markDirty();
+                    append(key, (int) fileLen, isRGB565, isRaw, 0L);
+                    if (Config.durability == Durability.GROUP_COMMIT) {
+                        unsyncedFiles.add(file.getPath());
+                    }
                     checkSize();
                 }
             }
         } catch (Throwable e) {
             LogProxy.e(TAG, e);
+        } finally {
+            journalLock.unlock();
         }
     }
 
     private Record getRecord(CacheKey key) {
+        if (!checkJournal()) return null;
         Record record = journal.get(key);
+        if (record != null && !record.verified && !verify(record)) {
+            return null;
+        }
         if (record != null) {
-            record.order = accessOrder;
-            buffer.putInt(record.orderOffset, accessOrder);
-            accessOrder++;
+            int order = accessOrder.getAndIncrement();
+            record.order = order;
+            // The order in memory is the newest one, the journal will catch up it when rewriting.
+            // So if the journal is busy, just skip writing back.
+            if (journalLock.tryLock()) {
+                try {
+                    if (journal.get(key) == record) {
+                        buffer.putInt(record.orderOffset, order);
+                    }
+                } finally {
+                    journalLock.unlock();
+                }
+            }
         }
         return record;
     }
 
-    synchronized void delete(CacheKey key) {
+    /**
+     * Check the size of the record against the file (or the segment), drop the record if they don't match.
+     */
+    private boolean verify(Record record) {
+        if (exists(record)) {
+            record.verified = true;
+            return true;
+        }
+        boolean needRelease = false;
+        journalLock.lock();
+        try {
+            if (journal.get(record.key) == record) {
+                needRelease = drop(record);
+            }
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        } finally {
+            journalLock.unlock();
+        }
+        if (needRelease) {
+            release(record.location, record.getFileSize());
+        }
+        return false;
+    }
+
+    /**
+     * Remove the record of missing or truncated file.
+     * Should be called with journalLock held.
+     *
+     * @return true if the packed entry should be released (after unlocking).
+     */
+    private boolean drop(Record record) {
+        journal.remove(record.key);
+        markDirty();
+        retire(record);
+        sum -= record.getFileSize();
+        buffer.putInt(record.orderOffset, 0);
+        if (record.location == 0) {
+            // Truncated file, not to be recorded again by checkFile.
+            Utils.deleteQuietly(new File(keyToPath(record.key)));
+            return false;
+        }
+        return blobStore != null;
+    }
+
+    void delete(CacheKey key) {
         if (!checkJournal()) return;
-        Record record = journal.get(key);
-        if (record != null) {
-            journal.remove(key);
-            try {
-                File file = new File(keyToPath(key));
-                if (!file.exists() || Utils.deleteQuietly(file)) {
+        Record record = null;
+        journalLock.lock();
+        try {
+            record = journal.remove(key);
+            if (record != null) {
+                markDirty();
+                retire(record);
+                sum -= record.getFileSize();
+                if (record.location != 0) {
                     buffer.putInt(record.orderOffset, 0);
+                } else {
+                    File file = new File(keyToPath(key));
+                    if (!file.exists() || Utils.deleteQuietly(file)) {
+                        buffer.putInt(record.orderOffset, 0);
+                    }
                 }
-            } catch (Throwable e) {
-                LogProxy.e(TAG, e);
             }
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        } finally {
+            journalLock.unlock();
+        }
+        if (record != null && record.location != 0) {
+            release(record.location, record.getFileSize());
+        }
+    }
+
+    /**
+     * Should be called with journalLock held.
+     */
+    private void retire(Record record) {
+        Validator validator = record.validator;
+        if (validator != null) {
+            retiredValidators.put(record.key, validator);
+        }
+    }
+
+    private void release(long location, int len) {
+        if (blobStore.release(location, len)) {
+            final int segmentId = BlobStore.getSegmentId(location);
+            Scheduler.maintainExecutor.execute(() -> compact(segmentId));
+        }
+    }
+
+    /**
+     * Move the live entries of the segment to the active segment, and then remove the segment.
+     * Run on the maintenance thread.
+     */
+    private void compact(int segmentId) {
+        List<Record> liveList = new ArrayList<>();
+        for (Record record : journal.values()) {
+            long location = record.location;
+            if (location != 0 && BlobStore.getSegmentId(location) == segmentId) {
+                liveList.add(record);
+            }
+        }
+        try {
+            for (Record record : liveList) {
+                long location = record.location;
+                int len = record.getFileSize();
+                byte[] data = blobStore.read(location, len);
+                if (data == null) {
+                    continue;
+                }
+                long newLocation;
+                try {
+                    newLocation = blobStore.append(data, len);
+                } finally {
+                    ByteArrayPool.recycleArray(data);
+                }
+                boolean moved = false;
+                journalLock.lock();
+                try {
+                    if (journal.get(record.key) == record && record.location == location) {
+                        markDirty();
+                        record.location = newLocation;
+                        buffer.putLong(record.orderOffset + 8, newLocation);
+                        moved = true;
+                    }
+                } finally {
+                    journalLock.unlock();
+                }
+                if (!moved) {
+                    blobStore.release(newLocation, len);
+                }
+            }
+            blobStore.remove(segmentId);
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        }
+    }
+
+    /**
+     * Mark the journal dirty before writing files to the cache directory,
+     * so that if the process dies in the middle, the next start will reconcile the directory.
+     * Should be paired with {@link #endEdit()}.
+     */
+    void beginEdit() {
+        if (!checkJournal()) return;
+        journalLock.lock();
+        try {
+            editCount++;
+            markDirty();
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    void endEdit() {
+        if (!available) return;
+        journalLock.lock();
+        try {
+            if (editCount > 0) {
+                editCount--;
+            }
+            if (editCount == 0 && !clean) {
+                scheduleCheckpoint();
+            }
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Should be called with journalLock held.
+     */
+    private void markDirty() {
+        if (clean) {
+            buffer.putInt(STATE_OFFSET, STATE_DIRTY);
+            clean = false;
+            scheduleCheckpoint();
+        }
+    }
+
+    private void scheduleCheckpoint() {
+        if (checkpointScheduled.compareAndSet(false, true)) {
+            if (Config.durability == Durability.GROUP_COMMIT) {
+                // Delay to gather more files in a commit.
+                Scheduler.maintainExecutor.schedule(this::checkpoint, GROUP_COMMIT_DELAY);
+            } else {
+                Scheduler.maintainExecutor.execute(this::checkpoint);
+            }
+        }
+    }
+
+    /**
+     * Flush the journal and mark it clean, if there is no file writing and reconciling.
+     * For group commit, sync the files recorded since last commit at first.
+     */
+    private void checkpoint() {
+        checkpointScheduled.set(false);
+        Durability durability = Config.durability;
+        if (durability == Durability.GROUP_COMMIT) {
+            syncRecordedFiles();
+        }
+        journalLock.lock();
+        try {
+            if (!clean && editCount == 0 && !needReconcile) {
+                if (!unsyncedFiles.isEmpty()) {
+                    // Recorded while syncing, commit them next time.
+                    scheduleCheckpoint();
+                    return;
+                }
+                if (durability != Durability.NONE) {
+                    buffer.force();
+                }
+                buffer.putInt(STATE_OFFSET, STATE_CLEAN);
+                clean = true;
+            }
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * Sync without holding the journal lock, not to block the lookups and writers.
+     */
+    private void syncRecordedFiles() {
+        List<String> files;
+        journalLock.lock();
+        try {
+            files = new ArrayList<>(unsyncedFiles);
+            unsyncedFiles.clear();
+        } finally {
+            journalLock.unlock();
+        }
+        for (String path : files) {
+            try (RandomAccessFile accessFile = new RandomAccessFile(path, "r")) {
+                accessFile.getFD().sync();
+            } catch (IOException ignore) {
+                // Deleted after recording
+            }
+        }
+        if (blobStore != null) {
+            blobStore.sync();
+        }
+        if (LogProxy.isDebug() && !files.isEmpty()) {
+            Log.d(TAG, "Group commit, files:" + files.size());
         }
     }
 
@@ -117,21 +669,31 @@ final class DiskCache {
         if (capacity <= 0 || maxCount <= 0) {
             return false;
         }
-        if (journal == null) {
-            journal = new HashMap<>();
+        if (!loaded) {
+            journalLock.lock();
             try {
-                readJournal();
-            } catch (Throwable e) {
-                LogProxy.e(TAG, e);
+                if (!loaded) {
+                    try {
+                        readJournal();
+                    } catch (Throwable e) {
+                        LogProxy.e(TAG, e);
+                    }
+                    available = buffer != null;
+                    loaded = true;
+                }
+            } finally {
+                journalLock.unlock();
             }
         }
-        return buffer != null;
+        return available;
     }
 
     private void initBuffer() {
         buffer.position(0);
         buffer.put(HEADER);
         buffer.putInt(VERSION);
+        // A new journal does not know the files in directory, reconcile them.
+        buffer.putInt(STATE_DIRTY);
         paddingZero(DATA_START);
     }
 
@@ -140,6 +702,7 @@ final class DiskCache {
         if (!Utils.makeFileIfNotExist(journalFile)) {
             return;
         }
+        loadTime = System.currentTimeMillis();
         RandomAccessFile accessFile = new RandomAccessFile(journalFile, "rw");
         channel = accessFile.getChannel();
         long length = accessFile.length();
@@ -150,10 +713,11 @@ final class DiskCache {
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
             byte[] header = new byte[4];
             buffer.get(header);
-            if (!Arrays.equals(header, HEADER)) {
+            if (!Arrays.equals(header, HEADER) || buffer.getInt() != VERSION) {
                 initBuffer();
             }
         }
+        clean = buffer.getInt(STATE_OFFSET) == STATE_CLEAN;
 
         buffer.position(DATA_START);
         journalEnd = DATA_START;
@@ -169,134 +733,581 @@ final class DiskCache {
             int orderOffset = buffer.position();
             int order = buffer.getInt();
             if (order > 0) {
-                if (order > maxOrder) {
-                    maxOrder = order;
-                }
                 int extra = buffer.getInt();
-                Record record = new Record(key, orderOffset, order, extra);
-                journal.put(key, record);
-                sum += record.getFileSize();
+                long location = buffer.getLong();
+                Record record = new Record(key, orderOffset, order, extra, location);
+                if (record.getFileSize() == 0) {
+                    // Torn record (the system crashed when the page was half written),
+                    // the ones with non-zero size are checked at lookups (see verify).
+                    buffer.putInt(orderOffset, 0);
+                    invalidCount++;
+                    clean = false;
+                } else {
+                    if (order > maxOrder) {
+                        maxOrder = order;
+                    }
+                    journal.put(key, record);
+                    sum += record.getFileSize();
+                }
             } else {
                 // If order equal to zero, it means the cache file had been deleted.
-                buffer.position(buffer.position() + 4);
+                buffer.position(buffer.position() + 12);
                 invalidCount++;
             }
             journalEnd = buffer.position();
         }
-        accessOrder = maxOrder + 1;
+        accessOrder.set(maxOrder + 1);
+
+        if (invalidCount * RECORD_SIZE > PAGE_SIZE || maxOrder > MAX_ORDER) {
+            rewrite(sortByOrder(journal.values()));
+        }
+
+        openBlobStore();
+
+        if (new File(cachePath + METADATA_NAME).exists()) {
+            readMetadata();
+        }
+        if (new File(cachePath + VALIDATORS_NAME).exists()) {
+            readValidators();
+        }
+
+        // Scanning directory is slow when there are thousands of files,
+        // so only do it when the journal was not clean (the process died when writing files),
+        // and do it in background, serving lookups from the journal meanwhile.
+        if (!clean) {
+            needReconcile = true;
+            Scheduler.maintainExecutor.execute(this::reconcile);
+        }
+    }
+
+    private void openBlobStore() {
+        Set<Integer> segmentIds = new HashSet<>();
+        Map<Integer, Long> liveBytes = new HashMap<>();
+        for (Record record : journal.values()) {
+            if (record.location != 0) {
+                int segmentId = BlobStore.getSegmentId(record.location);
+                segmentIds.add(segmentId);
+                Long live = liveBytes.get(segmentId);
+                liveBytes.put(segmentId, (live != null ? live : 0L) + record.getFileSize());
+            }
+        }
+        // Open the store if there are packed entries, even packing is disabled now, to read them.
+        if (packThreshold > 0 || !segmentIds.isEmpty()) {
+            blobStore = new BlobStore(cachePath);
+            blobStore.open(segmentIds);
+            for (final int segmentId : blobStore.initDeadBytes(liveBytes)) {
+                Scheduler.maintainExecutor.execute(() -> compact(segmentId));
+            }
+        }
+    }
+
+    /**
+     * Should be called with journalLock held.
+     */
+    private boolean openMetadata() {
+        metadataChannel = openSideTable(METADATA_NAME, METADATA_HEADER, METADATA_VERSION);
+        metadataEnd = METADATA_START;
+        return metadataChannel != null;
+    }
+
+    /**
+     * Create (or truncate) a side table with the header (magic and version).
+     * Should be called with journalLock held.
+     *
+     * @return channel of the table, null if failed.
+     */
+    private FileChannel openSideTable(String name, byte[] magic, int version) {
+        FileChannel sideChannel = null;
+        try {
+            File file = new File(cachePath + name);
+            if (!Utils.makeFileIfNotExist(file)) {
+                return null;
+            }
+            sideChannel = new RandomAccessFile(file, "rw").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(magic.length + 4);
+            header.put(magic);
+            header.putInt(version);
+            header.flip();
+            sideChannel.truncate(0);
+            while (header.hasRemaining()) {
+                sideChannel.write(header, header.position());
+            }
+            return sideChannel;
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+            Utils.closeQuietly(sideChannel);
+            return null;
+        }
+    }
+
+    /**
+     * Attach the metadata to the records, matching by key and file length
+     * (the entry may had been deleted and saved again without metadata).
+     * If most of the side table are dead, rewrite it.
+     */
+    private void readMetadata() {
+        try {
+            File file = new File(cachePath + METADATA_NAME);
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid metadata file");
+            }
+            metadataChannel = new RandomAccessFile(file, "rw").getChannel();
+            ByteBuffer buf = ByteBuffer.allocate((int) length);
+            while (buf.hasRemaining()) {
+                if (metadataChannel.read(buf, buf.position()) < 0) {
+                    break;
+                }
+            }
+            buf.flip();
+            byte[] header = new byte[METADATA_HEADER.length];
+            if (buf.remaining() < METADATA_START) {
+                throw new IOException("Invalid metadata file");
+            }
+            buf.get(header);
+            if (!Arrays.equals(header, METADATA_HEADER) || buf.getInt() != METADATA_VERSION) {
+                throw new IOException("Invalid metadata version");
+            }
+            MediaType[] types = MediaType.values();
+            int total = 0;
+            int live = 0;
+            while (buf.remaining() >= METADATA_RECORD_SIZE) {
+                CacheKey key = new CacheKey(buf.getLong(), buf.getLong());
+                int fileLen = buf.getInt();
+                int width = buf.getInt();
+                int height = buf.getInt();
+                int orientation = buf.getShort();
+                int type = buf.getShort();
+                total++;
+                Record record = journal.get(key);
+                if (record != null && record.metadata == null && record.getFileSize() == fileLen
+                        && type >= 0 && type < types.length) {
+                    record.metadata = new Metadata(width, height, orientation, types[type]);
+                    live++;
+                }
+            }
+            metadataEnd = METADATA_START + (long) total * METADATA_RECORD_SIZE;
+            if ((total - live) * METADATA_RECORD_SIZE > PAGE_SIZE && total > live * 2) {
+                rewriteMetadata();
+            }
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+            // Metadata is optional, start over.
+            Utils.closeQuietly(metadataChannel);
+            metadataChannel = null;
+            if (openMetadata()) {
+                rewriteMetadata();
+            }
+        }
+    }
+
+    private void rewriteMetadata() {
+        try {
+            List<Record> list = new ArrayList<>();
+            for (Record record : journal.values()) {
+                if (record.metadata != null) {
+                    list.add(record);
+                }
+            }
+            ByteBuffer buf = ByteBuffer.allocate(METADATA_START + list.size() * METADATA_RECORD_SIZE);
+            buf.put(METADATA_HEADER);
+            buf.putInt(METADATA_VERSION);
+            for (Record record : list) {
+                putMetadataRecord(buf, record);
+            }
+            buf.flip();
+            metadataChannel.truncate(0);
+            while (buf.hasRemaining()) {
+                metadataChannel.write(buf, buf.position());
+            }
+            metadataEnd = buf.limit();
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        }
+    }
+
+    private static void putMetadataRecord(ByteBuffer buf, Record record) {
+        Metadata metadata = record.metadata;
+        buf.putLong(record.key.h1);
+        buf.putLong(record.key.h2);
+        buf.putInt(record.getFileSize());
+        buf.putInt(metadata.width);
+        buf.putInt(metadata.height);
+        buf.putShort((short) metadata.orientation);
+        buf.putShort((short) metadata.mediaType.ordinal());
+    }
+
+    private boolean openValidators() {
+        validatorsChannel = openSideTable(VALIDATORS_NAME, VALIDATORS_HEADER, VALIDATORS_VERSION);
+        validatorsEnd = VALIDATORS_START;
+        validatorCount = 0;
+        return validatorsChannel != null;
+    }
+
+    /**
+     * Attach the validators to the records, matching by key and file length,
+     * records are appended when updating, so the last one wins.
+     * The ones of removed entries (file length 0, or no record in the journal) are retired.
+     * A torn record at the end (the process died when writing) is overwritten by the next put.
+     */
+    private void readValidators() {
+        try {
+            File file = new File(cachePath + VALIDATORS_NAME);
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid validators file");
+            }
+            validatorsChannel = new RandomAccessFile(file, "rw").getChannel();
+            ByteBuffer buf = ByteBuffer.allocate((int) length);
+            while (buf.hasRemaining()) {
+                if (validatorsChannel.read(buf, buf.position()) < 0) {
+                    break;
+                }
+            }
+            buf.flip();
+            byte[] header = new byte[VALIDATORS_HEADER.length];
+            if (buf.remaining() < VALIDATORS_START) {
+                throw new IOException("Invalid validators file");
+            }
+            buf.get(header);
+            if (!Arrays.equals(header, VALIDATORS_HEADER) || buf.getInt() != VALIDATORS_VERSION) {
+                throw new IOException("Invalid validators version");
+            }
+            int total = 0;
+            while (buf.remaining() >= VALIDATOR_FIXED_SIZE) {
+                int start = buf.position();
+                CacheKey key = new CacheKey(buf.getLong(), buf.getLong());
+                int fileLen = buf.getInt();
+                long fetchTime = buf.getLong();
+                int generation = buf.getInt();
+                String eTag = getString(buf);
+                String lastModified = eTag != null ? getString(buf) : null;
+                if (eTag == null || lastModified == null) {
+                    buf.position(start);
+                    break;
+                }
+                total++;
+                Validator validator = new Validator(eTag.isEmpty() ? null : eTag,
+                        lastModified.isEmpty() ? null : lastModified, fetchTime, generation);
+                Record record = journal.get(key);
+                if (record == null) {
+                    retiredValidators.remove(key);
+                    retiredValidators.put(key, validator);
+                } else if (record.getFileSize() == fileLen) {
+                    record.validator = validator;
+                    retiredValidators.remove(key);
+                }
+            }
+            validatorsEnd = buf.position();
+            validatorCount = total;
+            int live = retiredValidators.size();
+            for (Record record : journal.values()) {
+                if (record.validator != null) {
+                    live++;
+                }
+            }
+            if ((total - live) * VALIDATOR_FIXED_SIZE > PAGE_SIZE && total > live * 2) {
+                rewriteValidators();
+            }
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+            // Validators are optional, start over.
+            Utils.closeQuietly(validatorsChannel);
+            validatorsChannel = null;
+            if (openValidators()) {
+                rewriteValidators();
+            }
+        }
+    }
 
-        if (invalidCount * RECORD_SIZE > PAGE_SIZE) {
-            reorganize();
+    /**
+     * @return the string (empty for null), or null if the buffer is truncated.
+     */
+    private static String getString(ByteBuffer buf) {
+        if (buf.remaining() < 2) {
+            return null;
         }
+        int len = buf.getShort() & 0xFFFF;
+        if (buf.remaining() < len) {
+            return null;
+        }
+        String value = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return value;
+    }
 
-        checkExists();
+    private void rewriteValidators() {
+        try {
+            List<Record> list = new ArrayList<>();
+            int size = VALIDATORS_START;
+            for (Record record : journal.values()) {
+                Validator validator = record.validator;
+                if (validator != null) {
+                    list.add(record);
+                    size += getValidatorSize(validator);
+                }
+            }
+            for (Validator validator : retiredValidators.values()) {
+                size += getValidatorSize(validator);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            buf.put(VALIDATORS_HEADER);
+            buf.putInt(VALIDATORS_VERSION);
+            // Retired ones first, so the live ones win if the key is saved again.
+            for (Map.Entry<CacheKey, Validator> entry : retiredValidators.entrySet()) {
+                putValidatorRecord(buf, entry.getKey(), 0, entry.getValue());
+            }
+            for (Record record : list) {
+                putValidatorRecord(buf, record.key, record.getFileSize(), record.validator);
+            }
+            buf.flip();
+            validatorsChannel.truncate(0);
+            while (buf.hasRemaining()) {
+                validatorsChannel.write(buf, buf.position());
+            }
+            validatorsEnd = buf.limit();
+            validatorCount = list.size() + retiredValidators.size();
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        }
     }
 
-    private void reorganize() {
-        List<Record> recordList = new ArrayList<>(journal.values());
-        Collections.sort(recordList);
-        rewrite(recordList);
+    private static int getValidatorSize(Validator validator) {
+        return VALIDATOR_FIXED_SIZE + validator.eTagBytes.length + validator.lastModifiedBytes.length;
     }
 
-    // Compare files data from file system and journal.
-    // Append to to end if journal miss record;
-    // Remote from journal if file had been deleted.
-    private void checkExists() throws IOException {
-        String[] names = new File(cachePath).list();
-        if (names == null || names.length == 0) return;
+    /**
+     * @param fileLen file length of the entry, 0 for the retired validator.
+     */
+    private static void putValidatorRecord(ByteBuffer buf, CacheKey key, int fileLen, Validator validator) {
+        buf.putLong(key.h1);
+        buf.putLong(key.h2);
+        buf.putInt(fileLen);
+        buf.putLong(validator.fetchTime);
+        buf.putInt(validator.generation);
+        buf.putShort((short) validator.eTagBytes.length);
+        buf.put(validator.eTagBytes);
+        buf.putShort((short) validator.lastModifiedBytes.length);
+        buf.put(validator.lastModifiedBytes);
+    }
 
-        Set<CacheKey> fileSet = new HashSet<>(names.length * 4 / 3 + 1);
-        for (String name : names) {
-            if (JOURNAL_NAME.equals(name)) {
-                continue;
+    /**
+     * Compare files data from file system and journal.
+     * Append to the journal if miss record;
+     * Remove from journal if file had been deleted.
+     * <p>
+     * Run on the maintenance thread, check a batch of files at a time.
+     */
+    private void reconcile() {
+        try {
+            String[] names = new File(cachePath).list();
+            if (names != null) {
+                for (int i = 0; i < names.length; i += RECONCILE_BATCH) {
+                    int end = Math.min(i + RECONCILE_BATCH, names.length);
+                    journalLock.lock();
+                    try {
+                        for (int j = i; j < end; j++) {
+                            checkFile(names[j]);
+                        }
+                    } finally {
+                        journalLock.unlock();
+                    }
+                }
             }
-            CacheKey key = CacheKey.parse(name);
-            if (key != null) {
-                fileSet.add(key);
-                if (!journal.containsKey(key)) {
-                    File file = new File(cachePath, name);
-                    long fileLen = file.length();
-                    if (fileLen > 0) {
-                        if (fileLen < capacity && fileLen < Integer.MAX_VALUE) {
-                            append(key, (int) fileLen, false);
-                            checkSize();
+
+            List<Record> recordList = new ArrayList<>(journal.values());
+            List<Record> releaseList = new ArrayList<>();
+            for (int i = 0; i < recordList.size(); i += RECONCILE_BATCH) {
+                int end = Math.min(i + RECONCILE_BATCH, recordList.size());
+                journalLock.lock();
+                try {
+                    for (int j = i; j < end; j++) {
+                        Record record = recordList.get(j);
+                        if (journal.get(record.key) != record) {
+                            continue;
+                        }
+                        if (exists(record)) {
+                            record.verified = true;
+                        } else if (drop(record)) {
+                            releaseList.add(record);
                         }
-                    } else {
-                        Utils.deleteQuietly(file);
                     }
+                } finally {
+                    journalLock.unlock();
                 }
-            } else {
-                Utils.deleteQuietly(new File(cachePath, name));
             }
+            for (Record record : releaseList) {
+                release(record.location, record.getFileSize());
+            }
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        } finally {
+            needReconcile = false;
+            scheduleCheckpoint();
+        }
+    }
+
+    private boolean exists(Record record) {
+        if (record.location != 0) {
+            return blobStore != null && blobStore.contains(record.location, record.getFileSize());
         }
+        // A file not synced may be truncated when the system crashed.
+        File file = new File(keyToPath(record.key));
+        return file.exists() && file.length() == record.getFileSize();
+    }
 
-        Set<CacheKey> journalCopy = new HashSet<>(journal.keySet());
-        journalCopy.removeAll(fileSet);
-        if (journalCopy.isEmpty()) {
+    /**
+     * Should be called with journalLock held.
+     */
+    private void checkFile(String name) throws IOException {
+        if (JOURNAL_NAME.equals(name)) {
             return;
         }
-        for (CacheKey key : journalCopy) {
-            File file = new File(keyToPath(key));
-            if (!file.exists()) {
-                Record record = journal.get(key);
-                if (record != null) {
-                    journal.remove(key);
-                    buffer.putInt(record.orderOffset, 0);
+        File file = new File(cachePath, name);
+        if (BlobStore.isSegment(name)) {
+            // Segment not opened means it has no live entry.
+            if (blobStore == null || !blobStore.isOpened(name)) {
+                Utils.deleteQuietly(file);
+            }
+            return;
+        }
+        // Files written after loading belong to the running tasks, leave them to the tasks.
+        if (file.lastModified() >= loadTime - 2000L) {
+            return;
+        }
+        if (name.endsWith(PARTIAL_SUFFIX) || name.endsWith(VALIDATOR_SUFFIX)) {
+            // Keep recent partial downloads for resuming.
+            if (System.currentTimeMillis() - file.lastModified() >= PARTIAL_MAX_AGE) {
+                Utils.deleteQuietly(file);
+            }
+            return;
+        }
+        CacheKey key = CacheKey.parse(name);
+        if (key == null) {
+            Utils.deleteQuietly(file);
+        } else if (!journal.containsKey(key)) {
+            long fileLen = file.length();
+            if (fileLen > 0) {
+                if (fileLen < capacity && fileLen <= Record.FILE_LEN_MASK) {
+                    markDirty();
+                    append(key, (int) fileLen, false, false, 0L);
+                    checkSize();
                 }
+            } else {
+                Utils.deleteQuietly(file);
             }
         }
     }
 
+    /**
+     * Should be called with journalLock held.
+     */
     private void checkSize() {
-        if (sum > capacity || journal.size() > maxCount) {
-            List<Record> recordList = new ArrayList<>(journal.values());
-            List<Record> remainList = new ArrayList<>();
-            // Sort by order, desc.
-            // Remove the record which has the most little order,
-            // until capacity and count less then the limit.
-            Collections.sort(recordList);
-            long capacityLimit = capacity * 7 / 8;
-            int sizeLimit = maxCount * 7 / 8;
-            int count = recordList.size();
-            int i = 0;
-            while (i < count && ((sum > capacityLimit) || (journal.size() > sizeLimit))) {
-                Record record = recordList.get(i++);
-                if (Utils.deleteQuietly(new File(keyToPath(record.key)))) {
-                    journal.remove(record.key);
-                    sum -= record.getFileSize();
-                } else {
-                    remainList.add(record);
+        if ((sum > capacity || journal.size() > maxCount) && trimScheduled.compareAndSet(false, true)) {
+            Scheduler.maintainExecutor.execute(this::trimToSize);
+        }
+    }
+
+    /**
+     * Remove the record which has the most little order,
+     * until capacity and count less then the limit.
+     * <p>
+     * Run on the maintenance thread, sorting without any lock.
+     */
+    private void trimToSize() {
+        trimScheduled.set(false);
+        long capacityLimit = capacity * 7 / 8;
+        int sizeLimit = maxCount * 7 / 8;
+        List<Record> recordList = sortByOrder(journal.values());
+        int count = recordList.size();
+        int i = 0;
+        while (i < count) {
+            Record record = recordList.get(i++);
+            File file;
+            journalLock.lock();
+            try {
+                if (sum <= capacityLimit && journal.size() <= sizeLimit) {
+                    break;
+                }
+                if (!journal.remove(record.key, record)) {
+                    continue;
                 }
+                markDirty();
+                retire(record);
+                sum -= record.getFileSize();
+                buffer.putInt(record.orderOffset, 0);
+                file = new File(keyToPath(record.key));
+            } finally {
+                journalLock.unlock();
             }
-            if (remainList.isEmpty()) {
-                rewrite(recordList.subList(i, count));
+            if (record.location != 0) {
+                release(record.location, record.getFileSize());
             } else {
-                remainList.addAll(recordList.subList(i, count));
-                rewrite(remainList);
+                // If failed to delete, the file will be picked up again when reconciling.
+                Utils.deleteQuietly(file);
             }
         }
+
+        journalLock.lock();
+        try {
+            markDirty();
+            rewrite(sortByOrder(journal.values()));
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * The orders of records may be updated by readers at any time,
+     * so take a snapshot of them before sorting.
+     */
+    private static List<Record> sortByOrder(Collection<Record> records) {
+        List<Record> list = new ArrayList<>(records);
+        int n = list.size();
+        long[] orders = new long[n];
+        for (int i = 0; i < n; i++) {
+            orders[i] = ((long) list.get(i).order << 32) | i;
+        }
+        Arrays.sort(orders);
+        List<Record> sortedList = new ArrayList<>(n);
+        for (long order : orders) {
+            sortedList.add(list.get((int) order));
+        }
+        return sortedList;
     }
 
     private void rewrite(List<Record> list) {
-        accessOrder = 1;
+        boolean renumber = accessOrder.get() > MAX_ORDER;
+        int order = 1;
         buffer.position(DATA_START);
         for (Record record : list) {
             buffer.putLong(record.key.h1);
             buffer.putLong(record.key.h2);
             record.orderOffset = buffer.position();
-            record.order = accessOrder++;
+            if (renumber) {
+                record.order = order++;
+            }
             buffer.putInt(record.order);
             buffer.putInt(record.extra);
+            buffer.putLong(record.location);
+        }
+        if (renumber) {
+            accessOrder.set(order);
         }
         journalEnd = buffer.position();
         paddingZero(journalEnd);
     }
 
-    private void append(CacheKey key, int fileLen, boolean isRGB565) throws IOException {
+    private void append(CacheKey key, int fileLen, boolean isRGB565, boolean isRaw, long location) throws IOException {
         int extra = fileLen;
         if (isRGB565) {
             extra |= Record.RGB_565_MASK;
         }
+        if (isRaw) {
+            extra |= Record.RAW_MASK;
+        }
         final int end = journalEnd;
         int bufferSize = buffer.capacity();
         if (end + RECORD_SIZE > bufferSize) {
@@ -304,15 +1315,19 @@ final class DiskCache {
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bufferSize + extendSize);
             paddingZero(bufferSize);
         }
+        int order = accessOrder.getAndIncrement();
         buffer.position(end);
         buffer.putLong(key.h1);
         buffer.putLong(key.h2);
-        buffer.putInt(accessOrder);
+        buffer.putInt(order);
         buffer.putInt(extra);
+        buffer.putLong(location);
         journalEnd = end + RECORD_SIZE;
-        journal.put(key, new Record(key, end + 16, accessOrder, extra));
+        Record record = new Record(key, end + 16, order, extra, location);
+        // Written by this process, the file is complete.
+        record.verified = true;
+        journal.put(key, record);
         sum += fileLen;
-        accessOrder++;
     }
 
     private void paddingZero(int start) {
@@ -332,30 +1347,99 @@ final class DiskCache {
     static final class CacheInfo {
         final String path;
         final boolean isRGB565;
+        final boolean isRaw;
+        private final Record record;
 
-        CacheInfo(String path, boolean isRGB565) {
+        CacheInfo(String path, Record record) {
             this.path = path;
-            this.isRGB565 = isRGB565;
+            this.isRGB565 = record.isRGB565();
+            this.isRaw = record.isRaw();
+            this.record = record;
+        }
+
+        boolean isPacked() {
+            return record.location != 0;
+        }
+
+        int getLength() {
+            return record.getFileSize();
+        }
+    }
+
+    /**
+     * Metadata of source image.
+     */
+    static final class Metadata {
+        final int width;
+        final int height;
+        // EXIF orientation, see ExifHelper
+        final int orientation;
+        final MediaType mediaType;
+
+        Metadata(int width, int height, int orientation, MediaType mediaType) {
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.mediaType = mediaType;
+        }
+    }
+
+    /**
+     * HTTP validators of source, for revalidating the cached source.
+     */
+    static final class Validator {
+        final String eTag;
+        final String lastModified;
+        // Time of the last download or revalidation
+        final long fetchTime;
+        // Increased when the source changed, folded into the request key to drop old results.
+        final int generation;
+        final byte[] eTagBytes;
+        final byte[] lastModifiedBytes;
+
+        Validator(String eTag, String lastModified, long fetchTime, int generation) {
+            this.eTagBytes = toBytes(eTag);
+            this.lastModifiedBytes = toBytes(lastModified);
+            // Drop the values too long to save.
+            this.eTag = eTagBytes.length > 0 ? eTag : null;
+            this.lastModified = lastModifiedBytes.length > 0 ? lastModified : null;
+            this.fetchTime = fetchTime;
+            this.generation = generation;
+        }
+
+        private static byte[] toBytes(String value) {
+            byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+            return bytes != null && bytes.length <= MAX_VALIDATOR_LENGTH ? bytes : new byte[0];
         }
     }
 
-    private static class Record implements Comparable<Record> {
+    private static class Record {
         // File size can never be negative,
         // so we use highest bit of 'extra' to save the 'isRGB565', for result cache.
         // It is not a clean way, but effective (comparing to save 'isRGB565' info with another byte).
+        // The second highest bit saves 'isRaw' (see RawPixels), limiting the file size to 1GB.
         private static final int RGB_565_MASK = 0x80000000;
-        private static final int FILE_LEN_MASK = 0x7fffffff;
+        private static final int RAW_MASK = 0x40000000;
+        private static final int FILE_LEN_MASK = 0x3fffffff;
 
         final CacheKey key;
+        final int extra;
+        // Guarded by journalLock
         int orderOffset;
-        int order;
-        int extra;
+        volatile int order;
+        // Zero means the entry saves as a single file, otherwise it's packed in the BlobStore.
+        volatile long location;
+        volatile Metadata metadata;
+        volatile Validator validator;
+        // False if loaded from the journal and not checked against the file yet.
+        volatile boolean verified;
 
-        Record(CacheKey key, int orderOffset, int order, int extra) {
+        Record(CacheKey key, int orderOffset, int order, int extra, long location) {
             this.key = key;
             this.orderOffset = orderOffset;
             this.order = order;
             this.extra = extra;
+            this.location = location;
         }
 
         int getFileSize() {
@@ -366,9 +1450,8 @@ final class DiskCache {
             return (extra & RGB_565_MASK) != 0;
         }
 
-        @Override
-        public int compareTo(Record o) {
-            return Integer.compare(order, o.order);
+        boolean isRaw() {
+            return (extra & RAW_MASK) != 0;
         }
     }
 }
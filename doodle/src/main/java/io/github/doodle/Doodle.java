@@ -2,6 +2,7 @@
 package io.github.doodle;
 
 import android.graphics.Bitmap;
+import android.graphics.Point;
 import android.net.Uri;
 import android.view.View;
 import android.widget.ImageView;
@@ -20,6 +21,13 @@ public final class Doodle {
         return Config.INSTANCE;
     }
 
+    /**
+     * Runtime metrics
+     */
+    public static Metrics metrics() {
+        return Metrics.INSTANCE;
+    }
+
     /**
      * Load bitmap by file path, url, or asserts path.
      *
@@ -89,6 +97,25 @@ public final class Doodle {
         return Downloader.downloadOnly(url);
     }
 
+    /**
+     * Download the file to the source cache in background (no decoding),
+     * queued with the other prefetches, see {@link Request#prefetch()}.
+     *
+     * @param url file url
+     */
+    public static void prefetch(String url) {
+        if (url != null && url.startsWith("http")) {
+            Prefetcher.enqueue(url, null);
+        }
+    }
+
+    /**
+     * Drop the prefetches which are not started.
+     */
+    public static void cancelPrefetch() {
+        Prefetcher.cancelAll();
+    }
+
     /**
      * To get the cache file (if exist).
      * This method could call on main thread.
@@ -101,6 +128,36 @@ public final class Doodle {
         return path != null ? new File(path) : null;
     }
 
+    /**
+     * To get the size of image from the source cache, without decoding.
+     * The size is recorded when the image is decoded at the first time,
+     * it's the size after rotating by EXIF orientation.
+     *
+     * @param url file url
+     * @return Return size of the image if recorded, otherwise return null.
+     */
+    public static Point getImageSize(String url) {
+        DiskCache.Metadata metadata = Downloader.getMetadata(new CacheKey(url));
+        if (metadata == null) {
+            return null;
+        }
+        // orientation in [5,8] means rotate 90 or 270 degrees
+        return metadata.orientation >= ExifHelper.ORIENTATION_TRANSPOSE
+                ? new Point(metadata.height, metadata.width)
+                : new Point(metadata.width, metadata.height);
+    }
+
+    /**
+     * Wait for the disk caches to be loaded, see {@link Config#setWarmUp(boolean)}.
+     * Don't call this method in UI thread.
+     *
+     * @param timeout max time to wait, in milliseconds
+     * @return Return true if the caches are loaded, false if timeout or warm-up is not enabled.
+     */
+    public static boolean awaitWarm(long timeout) {
+        return CacheWarmer.await(timeout);
+    }
+
     /**
      * Stop to put requests to {@link Worker}
      */
@@ -119,11 +176,15 @@ public final class Doodle {
      * It's suggest to call this in the callback of {@link android.app.Application#onTrimMemory(int)}
      */
     public static void trimMemory(int level) {
+        BitmapPool.clear();
         LruCache.trimMemory(level);
+        TileCache.trimMemory(level);
     }
 
     public static void clearMemory() {
+        BitmapPool.clear();
         LruCache.clearMemory();
+        TileCache.clearMemory();
     }
 
     public static void notifyPause(Object host) {
@@ -14,6 +14,7 @@ public final class DoodleContentProvider extends ContentProvider {
         Context appContext = getContext().getApplicationContext();
         Utils.appContext = appContext;
         Utils.registerActivityLifecycle(appContext);
+        CacheWarmer.start();
         return false;
     }
 
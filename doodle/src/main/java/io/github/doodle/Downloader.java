@@ -1,27 +1,75 @@
 
 package io.github.doodle;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import android.util.Log;
+
+import java.io.*;
 import java.net.URL;
 import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.FutureTask;
+
+import io.github.doodle.enums.Priority;
 import io.github.doodle.interfaces.HttpSourceFetcher;
+import io.github.doodle.interfaces.RangeSourceFetcher;
 
 /**
  * Provider api to download files and manage the file caches.
  */
 final class Downloader {
+    private static final String TAG = "Downloader";
+
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String CONTENT_RANGE = "Content-Range";
+    private static final String RANGE = "Range";
+    private static final String IF_RANGE = "If-Range";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final long MIN_RESUME_BYTES = 64 << 10;
+
+    private static final Set<CacheKey> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
     static final DiskCache sourceCache = new DiskCache("/doodle/source/",
             Config.sourceMaxCount, Config.sourceCapacity
     );
 
-    private static InputStream getStream(String url, int count) throws IOException {
+    /**
+     * @param requestHeaders extra headers of the request, like range and conditions.
+     * @param headers        output of the response headers (validators and range).
+     * @return the stream of body, null if not modified (response 304 of conditional request).
+     */
+    private static InputStream getStream(String url, int count, Map<String, String> requestHeaders,
+                                         Map<String, String> headers) throws IOException {
         HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        // Ranges are offsets of the raw content, disable the transparent gzip.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
+            connection.setRequestProperty(entry.getKey(), entry.getValue());
+        }
         int statusCode = connection.getResponseCode();
         if (statusCode >= 200 && statusCode < 300) {
+            putHeader(headers, connection, ETAG);
+            putHeader(headers, connection, LAST_MODIFIED);
+            if (statusCode == HttpURLConnection.HTTP_PARTIAL) {
+                putHeader(headers, connection, CONTENT_RANGE);
+            }
             return connection.getInputStream();
+        } else if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && !requestHeaders.isEmpty()) {
+            putHeader(headers, connection, ETAG);
+            putHeader(headers, connection, LAST_MODIFIED);
+            connection.disconnect();
+            return null;
+        } else if (statusCode == HTTP_RANGE_NOT_SATISFIABLE && requestHeaders.containsKey(RANGE)) {
+            connection.disconnect();
+            requestHeaders.remove(RANGE);
+            requestHeaders.remove(IF_RANGE);
+            return getStream(url, count, requestHeaders, headers);
         } else if (statusCode >= 300 && statusCode < 400) {
             if (count > 5) {
                 connection.disconnect();
@@ -35,20 +83,42 @@ final class Downloader {
             if (url.equals(redirectUrl)) {
                 throw new IOException("Redirect loop");
             }
-            return getStream(redirectUrl, count + 1);
+            return getStream(redirectUrl, count + 1, requestHeaders, headers);
         }
         throw new IOException("Request failed, status code:" + statusCode);
     }
 
+    private static void putHeader(Map<String, String> headers, HttpURLConnection connection, String name) {
+        String value = connection.getHeaderField(name);
+        if (value != null) {
+            headers.put(name, value);
+        }
+    }
+
     static InputStream getInputStream(String url) throws IOException {
+        return getInputStream(url, 0L, null, new HashMap<>());
+    }
+
+    private static InputStream getInputStream(String url, long offset, String validator,
+                                              Map<String, String> headers) throws IOException {
         HttpSourceFetcher fetcher = Config.httpSourceFetcher;
         if (fetcher != null) {
-            InputStream inputStream = fetcher.getInputStream(url);
+            InputStream inputStream;
+            if (fetcher instanceof RangeSourceFetcher) {
+                inputStream = ((RangeSourceFetcher) fetcher).getInputStream(url, offset, validator, headers);
+            } else {
+                inputStream = fetcher.getInputStream(url);
+            }
             if (inputStream != null) {
                 return inputStream;
             }
         }
-        return getStream(url, 1);
+        Map<String, String> requestHeaders = new HashMap<>();
+        if (offset > 0) {
+            requestHeaders.put(RANGE, "bytes=" + offset + "-");
+            requestHeaders.put(IF_RANGE, validator);
+        }
+        return getStream(url, 1, requestHeaders, headers);
     }
 
     static String getCachePath(CacheKey key) {
@@ -61,47 +131,306 @@ final class Downloader {
         }
     }
 
+    static DiskCache.Metadata getMetadata(CacheKey key) {
+        return sourceCache.getMetadata(key);
+    }
+
+    static void putMetadata(CacheKey key, DiskCache.Metadata metadata) {
+        sourceCache.putMetadata(key, metadata);
+    }
+
     static boolean hasRecord(CacheKey key) {
         return sourceCache.hasRecord(key);
     }
 
-    static File download(String url, CacheKey key) throws IOException {
-        return streamToFile(getInputStream(url), key,true);
+    /**
+     * Callback of downloading, called on the downloading thread after each write.
+     * The file is the partial file being written, which is renamed when finished.
+     */
+    interface ProgressListener {
+        void onProgress(File file, long bytes);
     }
 
-    static File downloadTemporary(InputStream inputStream, String url) throws IOException {
-        return streamToFile(inputStream, new CacheKey(url),  false);
+    static File download(String url, CacheKey key) throws IOException {
+        return download(url, key, null);
     }
 
-    private static File streamToFile(InputStream inputStream, CacheKey key, boolean needCache) throws IOException {
+    /**
+     * Download to the source cache.
+     * <p>
+     * Data is written to a partial file at first. If the download is interrupted,
+     * the partial file is kept with the validator of the response (strong ETag or Last-Modified),
+     * next time it resumes from the end of the partial file with "Range" and "If-Range",
+     * the server responses the whole content if the source had been changed.
+     */
+    static File download(String url, CacheKey key, ProgressListener listener) throws IOException {
         File desFile = new File(sourceCache.keyToPath(key));
         if (desFile.exists()) {
             return desFile;
         }
-        File tmpFile = null;
+        File partFile = new File(desFile.getPath() + DiskCache.PARTIAL_SUFFIX);
+        File validatorFile = new File(desFile.getPath() + DiskCache.VALIDATOR_SUFFIX);
+        DiskCache.Validator lastValidator = sourceCache.getLastValidator(key);
+        String validator = readValidator(partFile, validatorFile);
+        long offset = validator != null ? partFile.length() : 0L;
+        Map<String, String> headers = new HashMap<>();
+        InputStream inputStream = getInputStream(url, offset, validator, headers);
+        if (offset > 0 && getRangeStart(headers.get(CONTENT_RANGE)) != offset) {
+            offset = 0L;
+        }
+        String newValidator = getValidator(headers);
+        boolean success = false;
+        sourceCache.beginEdit();
         try {
-            tmpFile = new File(desFile.getParent(), desFile.getName() + ".tmp");
-            if (Utils.streamToFile(inputStream, tmpFile)) {
-                if (!needCache) {
-                    return tmpFile;
-                }
-                if (tmpFile.renameTo(desFile) || desFile.exists()) {
+            if (newValidator == null || !writeValidator(validatorFile, newValidator)) {
+                Utils.deleteQuietly(validatorFile);
+                newValidator = null;
+            }
+            if (LogProxy.isDebug() && offset > 0) {
+                Log.d(TAG, "Resume downloading from " + offset + ", url:" + url);
+            }
+            if (Utils.streamToFile(inputStream, partFile, offset, listener)) {
+                if (partFile.renameTo(desFile) || desFile.exists()) {
                     sourceCache.record(key, desFile, false);
+                    String eTag = headers.get(ETAG);
+                    String lastModified = headers.get(LAST_MODIFIED);
+                    sourceCache.putValidator(key, new DiskCache.Validator(eTag, lastModified,
+                            System.currentTimeMillis(), nextGeneration(lastValidator, eTag, lastModified)));
+                    success = true;
                     return desFile;
                 }
             }
             throw new IOException("Download failed");
         } finally {
-            if (needCache) {
-                Utils.deleteQuietly(tmpFile);
+            // Keep the partial file only if it's resumable and worth resuming.
+            if (success || newValidator == null || partFile.length() < MIN_RESUME_BYTES) {
+                Utils.deleteQuietly(partFile);
+                Utils.deleteQuietly(validatorFile);
             }
+            sourceCache.endEdit();
+        }
+    }
+
+    /**
+     * @return validator of the partial file, null if there's no partial file or it's expired.
+     */
+    private static String readValidator(File partFile, File validatorFile) {
+        if (partFile.exists() && validatorFile.exists() && partFile.length() > 0
+                && System.currentTimeMillis() - partFile.lastModified() < DiskCache.PARTIAL_MAX_AGE) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(validatorFile))) {
+                String validator = reader.readLine();
+                if (validator != null && !validator.isEmpty()) {
+                    return validator;
+                }
+            } catch (IOException e) {
+                LogProxy.e(TAG, e);
+            }
+        }
+        Utils.deleteQuietly(partFile);
+        Utils.deleteQuietly(validatorFile);
+        return null;
+    }
+
+    private static boolean writeValidator(File validatorFile, String validator) {
+        try (Writer writer = new FileWriter(validatorFile)) {
+            writer.write(validator);
+            return true;
+        } catch (IOException e) {
+            LogProxy.e(TAG, e);
+        }
+        return false;
+    }
+
+    /**
+     * Weak ETag is not allowed in "If-Range", fall back to Last-Modified.
+     */
+    private static String getValidator(Map<String, String> headers) {
+        String eTag = headers.get(ETAG);
+        if (eTag != null && !eTag.isEmpty() && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        String lastModified = headers.get(LAST_MODIFIED);
+        return lastModified != null && !lastModified.isEmpty() ? lastModified : null;
+    }
+
+    /**
+     * @param contentRange like "bytes 100-999/1000"
+     * @return start of the range, -1 if absent or invalid.
+     */
+    static long getRangeStart(String contentRange) {
+        if (contentRange != null && contentRange.startsWith("bytes ")) {
+            int end = contentRange.indexOf('-');
+            if (end > 6) {
+                try {
+                    return Long.parseLong(contentRange.substring(6, end).trim());
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * The generation of a source downloaded again (like after evicted) is kept if the validators are the same,
+     * otherwise it's increased, so the results of the last download don't match the new keys.
+     * It never goes back to 0, or the results saved under the keys of generation 0 match again.
+     */
+    private static int nextGeneration(DiskCache.Validator last, String eTag, String lastModified) {
+        if (last == null) {
+            return 0;
+        }
+        boolean same;
+        if (last.eTag != null || eTag != null) {
+            same = last.eTag != null && last.eTag.equals(eTag);
+        } else {
+            same = last.lastModified != null && last.lastModified.equals(lastModified);
+        }
+        return same ? last.generation : last.generation + 1;
+    }
+
+    /**
+     * Load the index of the source cache if not loaded, don't call it on main thread.
+     *
+     * @return generation of the cached source (or of the last download), 0 if it has never changed (or unknown).
+     * @see Request#sourceTtl(long)
+     */
+    static int getGeneration(String url) {
+        DiskCache.Validator validator = sourceCache.getLastValidator(new CacheKey(url));
+        return validator != null ? validator.generation : 0;
+    }
+
+    /**
+     * @return true if {@link #getGeneration(String)} doesn't block.
+     */
+    static boolean isGenerationKnown() {
+        return sourceCache.isLoaded();
+    }
+
+    /**
+     * If the cached source is older than the ttl, revalidate it in background,
+     * the stale source is still served meanwhile.
+     * It only reads the index in memory, so it could be called on main thread.
+     */
+    static void checkStale(String url, long ttl) {
+        CacheKey key = new CacheKey(url);
+        // Not cached, or the journal is not loaded yet (check it next time).
+        if (!sourceCache.hasRecord(key)) {
+            return;
+        }
+        if (!isStale(sourceCache.peekValidator(key), ttl) || !revalidating.add(key)) {
+            return;
+        }
+        // Serial with the loading tasks of the source (same tag), not to replace the file while they read it.
+        Scheduler.tagExecutor.execute(key, () -> {
+            try {
+                revalidate(url, key, ttl);
+            } catch (Throwable e) {
+                LogProxy.e(TAG, e);
+            } finally {
+                revalidating.remove(key);
+            }
+        }, true, Priority.LOW, false, Utils.getHost(url));
+    }
+
+    private static boolean isStale(DiskCache.Validator validator, long ttl) {
+        return validator == null || System.currentTimeMillis() - validator.fetchTime >= ttl;
+    }
+
+    /**
+     * Send a conditional request with the validators, 304 only updates the fetch time.
+     * If the source had been changed, replace the file and increase the generation,
+     * so requests after that get new keys, and the results of the old source are not used.
+     * <p>
+     * Custom {@link HttpSourceFetcher} can't send conditional requests,
+     * the whole content is downloaded and compared with the cached file.
+     */
+    private static void revalidate(String url, CacheKey key, long ttl) throws IOException {
+        DiskCache.Validator validator = sourceCache.peekValidator(key);
+        if (getCachePath(key) == null || !isStale(validator, ttl)) {
+            return;
+        }
+        Map<String, String> headers = new HashMap<>();
+        InputStream inputStream = null;
+        HttpSourceFetcher fetcher = Config.httpSourceFetcher;
+        if (fetcher != null) {
+            inputStream = fetcher.getInputStream(url);
+        }
+        if (inputStream == null) {
+            Map<String, String> requestHeaders = new HashMap<>();
+            if (validator != null && validator.eTag != null) {
+                requestHeaders.put(IF_NONE_MATCH, validator.eTag);
+            }
+            if (validator != null && validator.lastModified != null) {
+                requestHeaders.put(IF_MODIFIED_SINCE, validator.lastModified);
+            }
+            inputStream = getStream(url, 1, requestHeaders, headers);
+        }
+        long now = System.currentTimeMillis();
+        int generation = validator != null ? validator.generation : 0;
+        String eTag = headers.get(ETAG);
+        String lastModified = headers.get(LAST_MODIFIED);
+        if (inputStream == null) {
+            if (LogProxy.isDebug()) {
+                Log.d(TAG, "Source not modified, url:" + url);
+            }
+            // 304 may omit the validators.
+            if (validator != null) {
+                eTag = eTag != null ? eTag : validator.eTag;
+                lastModified = lastModified != null ? lastModified : validator.lastModified;
+            }
+            sourceCache.putValidator(key, new DiskCache.Validator(eTag, lastModified, now, generation));
+            return;
+        }
+        File desFile = new File(sourceCache.keyToPath(key));
+        File tmpFile = new File(desFile.getPath() + ".tmp");
+        sourceCache.beginEdit();
+        try {
+            if (!Utils.streamToFile(inputStream, tmpFile)) {
+                throw new IOException("Download failed");
+            }
+            if (Utils.contentEquals(tmpFile, desFile)) {
+                sourceCache.putValidator(key, new DiskCache.Validator(eTag, lastModified, now, generation));
+                return;
+            }
+            if (LogProxy.isDebug()) {
+                Log.d(TAG, "Source changed, url:" + url);
+            }
+            sourceCache.delete(key);
+            if (tmpFile.renameTo(desFile)) {
+                sourceCache.record(key, desFile, false);
+                sourceCache.putValidator(key, new DiskCache.Validator(eTag, lastModified, now, generation + 1));
+            }
+        } finally {
+            Utils.deleteQuietly(tmpFile);
+            sourceCache.endEdit();
+        }
+    }
+
+    static File downloadTemporary(InputStream inputStream, String url) throws IOException {
+        return streamToFile(inputStream, new CacheKey(url));
+    }
+
+    private static File streamToFile(InputStream inputStream, CacheKey key) throws IOException {
+        File desFile = new File(sourceCache.keyToPath(key));
+        if (desFile.exists()) {
+            return desFile;
+        }
+        File tmpFile = new File(desFile.getParent(), desFile.getName() + ".tmp");
+        sourceCache.beginEdit();
+        try {
+            if (Utils.streamToFile(inputStream, tmpFile)) {
+                return tmpFile;
+            }
+            throw new IOException("Download failed");
+        } finally {
+            sourceCache.endEdit();
         }
     }
 
     static File downloadOnly(String url) {
         CacheKey key = new CacheKey(url);
         FutureTask<File> future = new FutureTask<>(() -> download(url, key));
-        Scheduler.tagExecutor.execute(key, future, true);
+        Scheduler.tagExecutor.execute(key, future, true, Priority.NORMAL, false, Utils.getHost(url));
         try {
             return future.get();
         } catch (Throwable e) {
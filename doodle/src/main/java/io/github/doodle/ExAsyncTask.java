@@ -4,9 +4,14 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import io.github.doodle.LifecycleManager.Event;
+import io.github.doodle.enums.Priority;
 
 /**
  * Extended AsyncTask.
@@ -26,10 +31,18 @@ import io.github.doodle.LifecycleManager.Event;
  * <p>
  * - Avoid downloading same remote files or decoding same bitmap for more than once.<br>
  * (By {@link Scheduler.TagExecutor}).
+ * <p>
+ * - Tasks with same share key (see {@link #generateShareKey()}) coalesce:
+ * the later ones attach to the running one as followers, and receive its result.
+ * A cancelled follower just detaches,
+ * the shared work is cancelled only when the leader and all followers are cancelled.
  */
 abstract class ExAsyncTask {
     private final static Handler sHandler = new Handler(Looper.getMainLooper());
 
+    // Tasks which accept followers, also the lock of coalescing states.
+    private static final Map<CacheKey, ExAsyncTask> sInFlight = new HashMap<>();
+
     private final Callable<Object> mWorker;
     private final FutureTask<Object> mFuture;
 
@@ -41,7 +54,19 @@ abstract class ExAsyncTask {
 
     private int mHostHash;
 
+    // Coalescing states, guarded by sInFlight.
+    private CacheKey mShareKey;
+    private ExAsyncTask mLeader;
+    private List<ExAsyncTask> mFollowers;
+    private int mLiveFollowers = 0;
+    private boolean mSealed = false;
+
     protected boolean needDownloading;
+    protected Priority priority = Priority.NORMAL;
+    // Start in LIFO order with the same priority.
+    protected boolean lifo = false;
+    // Host of the url to download, see Scheduler.PipeExecutor.
+    protected String host;
 
     enum Status {
         PENDING,
@@ -54,12 +79,13 @@ abstract class ExAsyncTask {
             mTaskInvoked.set(true);
             Object result = null;
             try {
-                if (!mCancelled.get()) {
+                if (shouldRun()) {
                     result = doInBackground();
                 }
             } catch (Throwable e) {
                 mCancelled.set(true);
             }
+            seal();
             postResult(result);
             return result;
         };
@@ -68,6 +94,7 @@ abstract class ExAsyncTask {
             @Override
             protected void done() {
                 mDone = true;
+                seal();
                 try {
                     postResultIfNotInvoked(get());
                 } catch (CancellationException e) {
@@ -84,7 +111,8 @@ abstract class ExAsyncTask {
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public final boolean isDone() {
-        return mDone;
+        ExAsyncTask leader = mLeader;
+        return leader != null ? leader.mDone : mDone;
     }
 
     public final boolean isCancelled() {
@@ -105,23 +133,82 @@ abstract class ExAsyncTask {
     }
 
     public final void cancel(boolean mayInterruptIfRunning) {
-        mCancelled.set(true);
-        try {
-            mFuture.cancel(mayInterruptIfRunning);
-        }catch (Throwable ignore){
+        if (!mCancelled.compareAndSet(false, true)) {
+            return;
+        }
+        ExAsyncTask leader;
+        ExAsyncTask toCancel = null;
+        synchronized (sInFlight) {
+            leader = mLeader;
+            if (leader != null) {
+                leader.mLiveFollowers--;
+                if (leader.mCancelled.get() && leader.mLiveFollowers == 0) {
+                    toCancel = leader;
+                }
+            } else if (mLiveFollowers == 0) {
+                toCancel = this;
+            }
+        }
+        if (leader != null) {
+            // Follower has no future of its own, finish it now (onCancelled).
+            postResult(null);
+        }
+        if (toCancel != null) {
+            try {
+                toCancel.mFuture.cancel(mayInterruptIfRunning);
+            } catch (Throwable ignore) {
+            }
+            // Drop it from the queue if it's not started, not to take a slot of window later.
+            Scheduler.tagExecutor.remove(toCancel.mFuture);
         }
     }
 
     public final Object get() throws InterruptedException, ExecutionException {
-        return mFuture.get();
+        ExAsyncTask leader = mLeader;
+        return leader != null ? leader.mFuture.get() : mFuture.get();
     }
 
     public Object get(Long timeout, TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException {
-        return mFuture.get(timeout, unit);
+        ExAsyncTask leader = mLeader;
+        return leader != null ? leader.mFuture.get(timeout, unit) : mFuture.get(timeout, unit);
+    }
+
+    /**
+     * @return true if the task is cancelled but still running for its followers.
+     */
+    final boolean hasFollowers() {
+        synchronized (sInFlight) {
+            return mLiveFollowers > 0;
+        }
+    }
+
+    private boolean shouldRun() {
+        synchronized (sInFlight) {
+            return !mCancelled.get() || mLiveFollowers > 0;
+        }
+    }
+
+    /**
+     * Stop accepting followers, the later tasks with same key will run by themselves (and hit the caches).
+     */
+    private void seal() {
+        synchronized (sInFlight) {
+            mSealed = true;
+            if (mShareKey != null && sInFlight.get(mShareKey) == this) {
+                sInFlight.remove(mShareKey);
+            }
+        }
     }
 
     protected abstract CacheKey generateTag();
 
+    /**
+     * @return key to coalesce the tasks, null to not coalesce.
+     */
+    protected CacheKey generateShareKey() {
+        return null;
+    }
+
     protected abstract Object doInBackground();
 
     protected void onPostExecute(Object result) {
@@ -130,6 +217,23 @@ abstract class ExAsyncTask {
     protected void onCancelled() {
     }
 
+    /**
+     * Post an intermediate result to main thread,
+     * it's dropped if the task had been cancelled or finished when arriving.
+     */
+    protected final void publishProgress(Object value) {
+        if (!isCancelled()) {
+            sHandler.post(() -> {
+                if (!isCancelled() && mStatus != Status.FINISHED) {
+                    onProgressUpdate(value);
+                }
+            });
+        }
+    }
+
+    protected void onProgressUpdate(Object value) {
+    }
+
     public final void execute(int hostHash) {
         if (mStatus != Status.PENDING) {
             return;
@@ -139,10 +243,32 @@ abstract class ExAsyncTask {
         }
         mHostHash = hostHash;
         mStatus = Status.RUNNING;
-        Scheduler.tagExecutor.execute(generateTag(), mFuture, needDownloading);
+        CacheKey shareKey = generateShareKey();
+        if (shareKey != null) {
+            synchronized (sInFlight) {
+                ExAsyncTask leader = sInFlight.get(shareKey);
+                if (leader != null && !leader.mSealed && !leader.mFuture.isCancelled()
+                        && !(leader.mCancelled.get() && leader.mLiveFollowers == 0)) {
+                    if (leader.mFollowers == null) {
+                        leader.mFollowers = new ArrayList<>(2);
+                    }
+                    leader.mFollowers.add(this);
+                    leader.mLiveFollowers++;
+                    mLeader = leader;
+                    return;
+                }
+                mShareKey = shareKey;
+                sInFlight.put(shareKey, this);
+            }
+        }
+        Scheduler.tagExecutor.execute(generateTag(), mFuture, needDownloading, priority, lifo, host);
     }
 
     private void finish(Object result) {
+        // Cancelled followers had been finished.
+        if (mStatus == Status.FINISHED) {
+            return;
+        }
         detachHost();
         if (isCancelled()) {
             onCancelled();
@@ -150,6 +276,17 @@ abstract class ExAsyncTask {
             onPostExecute(result);
         }
         mStatus = Status.FINISHED;
+
+        List<ExAsyncTask> followers;
+        synchronized (sInFlight) {
+            followers = mFollowers;
+            mFollowers = null;
+        }
+        if (followers != null) {
+            for (ExAsyncTask follower : followers) {
+                follower.finish(result);
+            }
+        }
     }
 
     private void detachHost() {
@@ -160,7 +297,13 @@ abstract class ExAsyncTask {
 
     void handleEvent(int event) {
         if (!isCancelled() && mStatus != Status.FINISHED) {
-            if (event == Event.PAUSE) {
+            if (mLeader != null) {
+                // Follower is not in the queue.
+                if (event == Event.DESTROY) {
+                    mHostHash = 0;
+                    cancel(true);
+                }
+            } else if (event == Event.PAUSE) {
                 getExecutor().pushBack(mFuture);
             } else if (event == Event.RESUME) {
                 getExecutor().popFront(mFuture);
@@ -0,0 +1,75 @@
+package io.github.doodle;
+
+/**
+ * Count-Min sketch with 4-bit counters, to estimate access frequencies of cache keys in a small space.
+ * <p>
+ * Counters are halved when the number of additions reaches the sample size,
+ * so the old popularity fades out.
+ */
+final class FrequencySketch {
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    private static final int DEPTH = 4;
+
+    // Each long holds 16 counters.
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedSize expected number of keys, decides the number of counters.
+     */
+    FrequencySketch(int expectedSize) {
+        int n = Integer.highestOneBit(Math.max(expectedSize, 64) - 1) << 1;
+        n = Math.min(n, 1 << 16);
+        // 16 counters per expected key, or the counters saturate before the sample size is reached,
+        // then the additions stop counting and the reset never comes.
+        table = new long[n];
+        counterMask = (n << 4) - 1;
+        sampleSize = n * 10;
+    }
+
+    private int indexOf(CacheKey key, int i) {
+        // Double hashing, CacheKey is a 128 bits hash already.
+        long h = key.h1 + i * key.h2;
+        h ^= h >>> 32;
+        h ^= h >>> 16;
+        return (int) h & counterMask;
+    }
+
+    int frequency(CacheKey key) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(key, i);
+            int count = (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 0xF;
+            if (count < min) {
+                min = count;
+            }
+        }
+        return min;
+    }
+
+    void increment(CacheKey key) {
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(key, i);
+            int shift = (index & 15) << 2;
+            int j = index >>> 4;
+            if (((table[j] >>> shift) & 0xF) < MAX_COUNT) {
+                table[j] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+}
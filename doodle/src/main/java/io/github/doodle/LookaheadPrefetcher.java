@@ -0,0 +1,219 @@
+package io.github.doodle;
+
+import android.os.SystemClock;
+
+import java.util.*;
+
+import io.github.doodle.enums.ClipType;
+import io.github.doodle.enums.Priority;
+import io.github.doodle.interfaces.LookaheadProvider;
+
+/**
+ * Prefetch the items ahead of the scrolling list (like RecyclerView), to the memory cache.
+ * <p>
+ * Pass the visible range from the scroll callback of the list:
+ * <pre>
+ * public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+ *     prefetcher.onScrolled(layoutManager.findFirstVisibleItemPosition(),
+ *             layoutManager.findLastVisibleItemPosition());
+ * }
+ * </pre>
+ * The scrolling velocity (items per second) decides how many items ahead to load:
+ * enough to cover the lookahead time, at most the max count.
+ * No item is loaded when requests are paused (see {@link Doodle#pauseRequests()}),
+ * or the velocity exceeds the max velocity (flinging), they can't be shown in time.
+ * <p>
+ * The target size of items is taken from the items bound recently (the edge item of the scrolling direction),
+ * so that the results hit the memory cache when bound.
+ * The loadings which leave the lookahead range (like scrolling back) are cancelled.
+ * <p>
+ * All methods should be called on main thread.
+ */
+public final class LookaheadPrefetcher {
+    private static final int MAX_BOUND_RECORDS = 128;
+    private static final long VELOCITY_RESET_TIME = 500L;
+
+    private static volatile boolean sActive = false;
+
+    // Path to the size of the request bound to view
+    private static final Map<String, Bound> sBoundSizes = new LinkedHashMap<String, Bound>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bound> eldest) {
+            return size() > MAX_BOUND_RECORDS;
+        }
+    };
+
+    private final LookaheadProvider provider;
+    private int maxCount = 6;
+    private long lookaheadTime = 500L;
+    private float maxVelocity = 40f;
+
+    // Position to the worker, null worker if no need to load (no image or hit the memory cache).
+    private final Map<Integer, Worker> loadings = new HashMap<>();
+    private int lastFirst = -1;
+    private int lastLast = -1;
+    private long lastTime;
+    // Items per second, positive for scrolling to the end.
+    private float velocity = 0f;
+    private int direction = 1;
+
+    public LookaheadPrefetcher(LookaheadProvider provider) {
+        if (provider == null) {
+            throw new IllegalArgumentException("provider is null");
+        }
+        this.provider = provider;
+        sActive = true;
+    }
+
+    /**
+     * Set the max count of items to load ahead, 6 by default.
+     */
+    public LookaheadPrefetcher setMaxCount(int count) {
+        maxCount = Math.max(count, 1);
+        return this;
+    }
+
+    /**
+     * Set the time to cover by the items loaded ahead, 500ms by default.
+     */
+    public LookaheadPrefetcher setLookaheadTime(long millis) {
+        lookaheadTime = Math.max(millis, 0L);
+        return this;
+    }
+
+    /**
+     * Set the max velocity (items per second) to load ahead, 40 by default.
+     */
+    public LookaheadPrefetcher setMaxVelocity(float itemsPerSecond) {
+        maxVelocity = itemsPerSecond;
+        return this;
+    }
+
+    /**
+     * Call when the list scrolled.
+     *
+     * @param firstVisible position of the first visible item.
+     * @param lastVisible  position of the last visible item.
+     */
+    public void onScrolled(int firstVisible, int lastVisible) {
+        if (firstVisible < 0 || lastVisible < firstVisible
+                || (firstVisible == lastFirst && lastVisible == lastLast)) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (lastFirst >= 0) {
+            // Move of the center, in items.
+            float delta = ((firstVisible + lastVisible) - (lastFirst + lastLast)) / 2f;
+            long elapsed = Math.max(now - lastTime, 1L);
+            float v = delta * 1000f / elapsed;
+            velocity = elapsed >= VELOCITY_RESET_TIME ? v : (velocity + v) / 2f;
+            if (delta != 0) {
+                direction = delta > 0 ? 1 : -1;
+            }
+        }
+        lastFirst = firstVisible;
+        lastLast = lastVisible;
+        lastTime = now;
+        update(firstVisible, lastVisible);
+    }
+
+    /**
+     * Cancel all loadings, call it when the data of list changed, or the list is destroyed.
+     */
+    public void cancel() {
+        for (Worker worker : loadings.values()) {
+            if (worker != null && !worker.isDone()) {
+                worker.cancel(true);
+            }
+        }
+        loadings.clear();
+        lastFirst = -1;
+        lastLast = -1;
+        velocity = 0f;
+    }
+
+    private void update(int first, int last) {
+        int count = 0;
+        float speed = Math.abs(velocity);
+        if (!Controller.isPaused() && speed <= maxVelocity) {
+            count = Math.min(Math.max((int) Math.ceil(speed * lookaheadTime / 1000f), 1), maxCount);
+        }
+        int itemCount = provider.getItemCount();
+        int start;
+        int end;
+        if (direction > 0) {
+            start = last + 1;
+            end = Math.min(last + 1 + count, itemCount);
+        } else {
+            start = Math.max(first - count, 0);
+            end = Math.min(first, itemCount);
+        }
+
+        // Cancel the loadings out of range, the visible ones may be shared with the binding.
+        Iterator<Map.Entry<Integer, Worker>> it = loadings.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Worker> entry = it.next();
+            int position = entry.getKey();
+            if ((position < start || position >= end) && (position < first || position > last)) {
+                Worker worker = entry.getValue();
+                if (worker != null && !worker.isDone()) {
+                    worker.cancel(true);
+                }
+                it.remove();
+            }
+        }
+
+        if (start >= end) {
+            return;
+        }
+        Bound bound = getBound(direction > 0 ? last : first);
+        if (bound == null) {
+            return;
+        }
+        // The nearest first
+        for (int i = 0; i < end - start; i++) {
+            int position = direction > 0 ? start + i : end - 1 - i;
+            if (loadings.containsKey(position)) {
+                continue;
+            }
+            Request request = provider.getRequest(position);
+            Worker worker = null;
+            if (request != null && request.viewReference == null) {
+                if (request.targetWidth <= 0 && request.targetHeight <= 0) {
+                    request.override(bound.width, bound.height);
+                }
+                if (request.clipType == ClipType.NOT_SET) {
+                    request.clipType(bound.clipType);
+                }
+                worker = request.priority(Priority.LOW).lookahead();
+            }
+            loadings.put(position, worker);
+        }
+    }
+
+    private Bound getBound(int position) {
+        Request request = provider.getRequest(position);
+        return request != null ? sBoundSizes.get(request.path) : null;
+    }
+
+    /**
+     * Record the size of the request bound to view (after aligned).
+     */
+    static void recordBound(Request request) {
+        if (sActive && request.path != null) {
+            sBoundSizes.put(request.path, new Bound(request.targetWidth, request.targetHeight, request.clipType));
+        }
+    }
+
+    private static class Bound {
+        final int width;
+        final int height;
+        final ClipType clipType;
+
+        Bound(int width, int height, ClipType clipType) {
+            this.width = width;
+            this.height = height;
+            this.clipType = clipType;
+        }
+    }
+}
@@ -1,68 +1,221 @@
-
 package io.github.doodle;
 
 import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 
+import io.github.doodle.enums.MemoryCachePolicy;
+
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Memory cache of bitmaps.
+ * <p>
+ * Lookups read a concurrent index without locking (they are called on the main thread),
+ * the accesses are buffered and replayed to the replacement policy by whoever holds the lock,
+ * so lookups never wait for insertion or eviction.
+ */
 final class LruCache {
     private static final long MIN_TRIM_SIZE = Runtime.getRuntime().maxMemory() / 64;
-    private static long sum = 0;
-    private static final Map<CacheKey, BitmapWrapper> cache =
-            new LinkedHashMap<>(16, 0.75f, true);
+    // Accesses beyond the buffer are dropped, the policy only needs a sample of them.
+    private static final int MAX_BUFFERED_ACCESSES = 128;
+
+    private static final Map<CacheKey, BitmapWrapper> index = new ConcurrentHashMap<>();
+    private static final Queue<CacheKey> accessBuffer = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger bufferedCount = new AtomicInteger(0);
+    // Bytes of bitmaps held out of the cache (see TileCache), they share the capacity.
+    private static final AtomicLong reservedBytes = new AtomicLong(0);
 
-    static synchronized Bitmap get(CacheKey key) {
-        BitmapWrapper wrapper = cache.get(key);
-        return wrapper != null ? wrapper.bitmap : null;
+    // Guard the policy.
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Policy policy = Config.memoryCachePolicy == MemoryCachePolicy.TINY_LFU ?
+            new TinyLfuPolicy(Config.memoryCacheCapacity) : new LruPolicy();
+
+    static Bitmap get(CacheKey key) {
+        BitmapWrapper wrapper = index.get(key);
+        if (wrapper == null) {
+            return null;
+        }
+        if (bufferedCount.get() < MAX_BUFFERED_ACCESSES) {
+            bufferedCount.incrementAndGet();
+            accessBuffer.offer(key);
+        }
+        if (lock.tryLock()) {
+            try {
+                drainAccesses();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return wrapper.bitmap;
     }
 
-    static synchronized void put(CacheKey key, Bitmap bitmap) {
-        long capacity = Config.memoryCacheCapacity;
-        if (bitmap == null || capacity <= 0 || cache.containsKey(key)) {
+    static void put(CacheKey key, Bitmap bitmap) {
+        long capacity = getCapacity();
+        if (bitmap == null || capacity <= 0 || index.containsKey(key)) {
             return;
         }
-        BitmapWrapper wrapper = new BitmapWrapper(bitmap);
-        cache.put(key, wrapper);
-        sum += wrapper.bytesCount;
-        if (sum > capacity) {
-            trimToSize(capacity * 9 / 10);
+        lock.lock();
+        try {
+            drainAccesses();
+            if (!policy.containsKey(key)) {
+                BitmapWrapper wrapper = new BitmapWrapper(bitmap);
+                index.put(key, wrapper);
+                policy.put(key, wrapper, capacity);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    static synchronized void clearMemory() {
-        trimToSize(0);
+    private static long getCapacity() {
+        return Config.memoryCacheCapacity - reservedBytes.get();
+    }
+
+    /**
+     * @param bytes positive to hold bytes out of the cache (trim the cache to make room), negative to give back.
+     */
+    static void reserve(long bytes) {
+        reservedBytes.addAndGet(bytes);
+        if (bytes > 0) {
+            lock.lock();
+            try {
+                drainAccesses();
+                long capacity = getCapacity();
+                if (policy.size() > capacity) {
+                    policy.trimToSize(Math.max(capacity, 0));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
-    static synchronized void trimMemory(int level) {
+    static void clearMemory() {
+        trimToSize(-1);
+    }
+
+    static void trimMemory(int level) {
         if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
-            trimToSize(0);
+            trimToSize(-1);
         } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
                 || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
-            trimToSize(Math.max(sum >> 1, MIN_TRIM_SIZE));
+            trimToSize(MIN_TRIM_SIZE);
+        }
+    }
+
+    /**
+     * @param minSize negative to clear all, otherwise trim half of the cache, but keep at least minSize.
+     */
+    private static void trimToSize(long minSize) {
+        lock.lock();
+        try {
+            drainAccesses();
+            policy.trimToSize(minSize < 0 ? 0 : Math.max(policy.size() >> 1, minSize));
+        } finally {
+            lock.unlock();
         }
     }
 
-    private static void trimToSize(long size) {
-        Iterator<Map.Entry<CacheKey, BitmapWrapper>> iterator = cache.entrySet().iterator();
-        while (iterator.hasNext() && sum > size) {
-            Map.Entry<CacheKey, BitmapWrapper> entry = iterator.next();
-            BitmapWrapper wrapper = entry.getValue();
-            MemoryCache.bitmapWeakCache.put(entry.getKey(), wrapper.bitmap);
-            iterator.remove();
-            sum -= wrapper.bytesCount;
+    /**
+     * Should be called with lock held.
+     */
+    private static void drainAccesses() {
+        CacheKey key;
+        while ((key = accessBuffer.poll()) != null) {
+            bufferedCount.decrementAndGet();
+            policy.get(key);
         }
     }
 
-    private static class BitmapWrapper {
+    /**
+     * Bitmaps evicted from LruCache may still be in use, move them to WeakCache.
+     * Called by the policy with lock held.
+     */
+    static void evict(CacheKey key, BitmapWrapper wrapper) {
+        // Put to WeakCache before removing from index, so lookups always find it in one of them.
+        MemoryCache.bitmapWeakCache.put(key, wrapper.bitmap);
+        index.remove(key, wrapper);
+    }
+
+    /**
+     * Replacement policy, called with the lock of LruCache held.
+     * {@link #get(CacheKey)} is called to record accesses, it may be called with key not in cache.
+     */
+    abstract static class Policy {
+        abstract BitmapWrapper get(CacheKey key);
+
+        abstract boolean containsKey(CacheKey key);
+
+        abstract void put(CacheKey key, BitmapWrapper wrapper, long capacity);
+
+        abstract void trimToSize(long size);
+
+        /**
+         * @return bytes count of all bitmaps in cache.
+         */
+        abstract long size();
+    }
+
+    static final class LruPolicy extends Policy {
+        private final Map<CacheKey, BitmapWrapper> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private long sum = 0;
+
+        @Override
+        BitmapWrapper get(CacheKey key) {
+            return cache.get(key);
+        }
+
+        @Override
+        boolean containsKey(CacheKey key) {
+            return cache.containsKey(key);
+        }
+
+        @Override
+        void put(CacheKey key, BitmapWrapper wrapper, long capacity) {
+            cache.put(key, wrapper);
+            sum += wrapper.bytesCount;
+            if (sum > capacity) {
+                trimToSize(capacity * 9 / 10);
+            }
+        }
+
+        @Override
+        void trimToSize(long size) {
+            Iterator<Map.Entry<CacheKey, BitmapWrapper>> iterator = cache.entrySet().iterator();
+            while (iterator.hasNext() && sum > size) {
+                Map.Entry<CacheKey, BitmapWrapper> entry = iterator.next();
+                BitmapWrapper wrapper = entry.getValue();
+                evict(entry.getKey(), wrapper);
+                iterator.remove();
+                sum -= wrapper.bytesCount;
+            }
+        }
+
+        @Override
+        long size() {
+            return sum;
+        }
+    }
+
+    static class BitmapWrapper {
         final Bitmap bitmap;
         final int bytesCount;
 
         BitmapWrapper(Bitmap bitmap) {
+            this(bitmap, Utils.getBytesCount(bitmap));
+        }
+
+        BitmapWrapper(Bitmap bitmap, int bytesCount) {
             this.bitmap = bitmap;
-            this.bytesCount = Utils.getBytesCount(bitmap);
+            this.bytesCount = bytesCount;
         }
     }
 }
@@ -39,9 +39,13 @@ final class MemoryCache {
             Runtime runtime = Runtime.getRuntime();
             long remaining = MAX_MEMORY - runtime.totalMemory() + runtime.freeMemory();
             if (remaining < CRITICAL_MEMORY) {
+                BitmapPool.clear();
                 LruCache.clearMemory();
+                TileCache.clearMemory();
             } else if (remaining < LOW_MEMORY) {
+                BitmapPool.clear();
                 LruCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+                TileCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
             }
             FLAG.set(false);
         }
@@ -0,0 +1,92 @@
+package io.github.doodle;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runtime metrics of Doodle, for monitoring and tuning.
+ */
+public final class Metrics {
+    static final Metrics INSTANCE = new Metrics();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return current concurrency window of the computation tasks (decoding from local or cache).
+     */
+    public int getComputeWindow() {
+        return Scheduler.cpExecutor.getWindowSize();
+    }
+
+    /**
+     * @return tasks completed per second of the computation tasks, in the last sample period.
+     */
+    public float getComputeThroughput() {
+        return Scheduler.cpExecutor.getThroughput();
+    }
+
+    /**
+     * @return current concurrency window of the tasks with downloading.
+     */
+    public int getIoWindow() {
+        return Scheduler.ioExecutor.getWindowSize();
+    }
+
+    /**
+     * @return tasks completed per second of the tasks with downloading, in the last sample period.
+     */
+    public float getIoThroughput() {
+        return Scheduler.ioExecutor.getThroughput();
+    }
+
+    /**
+     * @return number of downloading tasks running per host.
+     */
+    public Map<String, Integer> getHostSlots() {
+        return Scheduler.ioExecutor.getHostSlots();
+    }
+
+    /**
+     * @return average time (ms) of the downloading tasks per host (recent hosts).
+     */
+    public Map<String, Long> getHostTimes() {
+        return Scheduler.ioExecutor.getHostTimes();
+    }
+
+    /**
+     * @return number of downloading tasks running of the slow hosts,
+     * which average time is more than twice the median of hosts.
+     */
+    public int getSlowHostSlots() {
+        return Scheduler.ioExecutor.getSlowHostSlots();
+    }
+
+    /**
+     * @return number of prefetches finished, see {@link Request#prefetch()}.
+     */
+    public int getPrefetchCount() {
+        return Prefetcher.getCompletedCount();
+    }
+
+    /**
+     * @return number of prefetched paths which were loaded later (to a view or by get()).
+     */
+    public int getPrefetchUsedCount() {
+        return Prefetcher.getUsedCount();
+    }
+
+    /**
+     * @return bytes downloaded by prefetching.
+     */
+    public long getPrefetchBytes() {
+        return Prefetcher.getTotalBytes();
+    }
+
+    /**
+     * @return recent prefetched paths which were loaded later, the oldest first (at most 64).
+     */
+    public List<String> getUsedPrefetches() {
+        return Prefetcher.getUsedPaths();
+    }
+}
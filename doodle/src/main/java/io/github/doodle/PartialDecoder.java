@@ -0,0 +1,206 @@
+package io.github.doodle;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.doodle.enums.ClipType;
+import io.github.doodle.enums.DecodeFormat;
+import io.github.doodle.enums.MediaType;
+import io.github.doodle.interfaces.Transformation;
+
+/**
+ * Decode the file while downloading, see {@link Request#progressive()}.
+ * <p>
+ * Only progressive JPEG and interlaced PNG are decoded, their early passes cover the whole image
+ * (in low quality), while baseline images only have the top rows.
+ * The missing part of input is filled by the platform decoder.
+ * <p>
+ * Decoding is throttled by time and bytes, and at most one decoding is in flight,
+ * the partial bitmaps are published to the worker, and they are not cached.
+ */
+final class PartialDecoder implements Downloader.ProgressListener {
+    private static final String TAG = "PartialDecoder";
+
+    private static final long MIN_INTERVAL = 300L; // ms
+    private static final long MIN_BYTES = 16 << 10;
+
+    private static final int FORMAT_UNKNOWN = 0;
+    private static final int FORMAT_SUPPORTED = 1;
+    private static final int FORMAT_UNSUPPORTED = 2;
+
+    private final Request request;
+    private final Worker worker;
+    private final AtomicBoolean decoding = new AtomicBoolean();
+    private volatile boolean stopped = false;
+    private volatile int format = FORMAT_UNKNOWN;
+    private boolean isJpeg;
+    private long lastTime;
+    private long lastBytes;
+
+    PartialDecoder(Request request, Worker worker) {
+        this.request = request;
+        this.worker = worker;
+    }
+
+    static boolean isEligible(Request request) {
+        ClipType clipType = request.clipType;
+        return request.progressive && request.viewReference != null && request.path.startsWith("http")
+                && request.diskCacheStrategy.savaSource() && !request.onlyIfCached
+                && (clipType == ClipType.NOT_SET || clipType == ClipType.NO_CLIP
+                || clipType == ClipType.FIT_CENTER || clipType == ClipType.CENTER_INSIDE
+                || clipType == ClipType.CENTER_CROP);
+    }
+
+    @Override
+    public void onProgress(File file, long bytes) {
+        if (stopped || format == FORMAT_UNSUPPORTED || worker.isCancelled()) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (bytes - lastBytes < MIN_BYTES || now - lastTime < MIN_INTERVAL || !decoding.compareAndSet(false, true)) {
+            return;
+        }
+        lastTime = now;
+        lastBytes = bytes;
+        Scheduler.cpExecutor.execute(() -> {
+            try {
+                Bitmap bitmap = decode(file);
+                if (bitmap != null && !stopped) {
+                    worker.publishProgress(bitmap);
+                }
+            } catch (Throwable e) {
+                // The file may be renamed or incomplete, the final decoding will handle the errors.
+                if (LogProxy.isDebug()) {
+                    Log.d(TAG, "Decode partial failed: " + e);
+                }
+            } finally {
+                decoding.set(false);
+            }
+        });
+    }
+
+    /**
+     * Called when downloading finished, drop the decoding in flight.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    private Bitmap decode(File file) throws IOException {
+        if (format == FORMAT_UNKNOWN) {
+            format = checkFormat(file);
+        }
+        if (format != FORMAT_SUPPORTED || stopped) {
+            return null;
+        }
+        String path = file.getPath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        int orientation = ExifHelper.ORIENTATION_UNDEFINED;
+        if (isJpeg) {
+            try (InputStream in = new FileInputStream(file)) {
+                orientation = ExifHelper.getOrientation(in);
+            }
+        }
+        if (orientation >= ExifHelper.ORIENTATION_TRANSPOSE) {
+            int t = width;
+            width = height;
+            height = t;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(width, height, request.targetWidth, request.targetHeight);
+        options.inPreferredConfig = isJpeg || request.decodeFormat == DecodeFormat.RGB_565
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null || stopped) {
+            return null;
+        }
+        if (orientation > ExifHelper.ORIENTATION_NORMAL) {
+            bitmap = ExifHelper.rotateImage(bitmap, orientation);
+        }
+        bitmap = Decoder.handleScaleAndCrop(bitmap, request, true);
+        if (request.transformations != null) {
+            for (Transformation transformation : request.transformations) {
+                if (bitmap == null) {
+                    break;
+                }
+                bitmap = transformation.transform(bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Keep the sampled size not smaller than the target, partial bitmaps are only for previewing.
+     */
+    private static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth > 0 && targetHeight > 0) {
+            while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+                sampleSize <<= 1;
+            }
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Check if the image is progressive JPEG or interlaced PNG,
+     * for JPEG, walk the markers until the frame header (SOFn).
+     */
+    private int checkFormat(File file) throws IOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            long length = accessFile.length();
+            byte[] header = new byte[32];
+            if (length < header.length) {
+                return FORMAT_UNKNOWN;
+            }
+            accessFile.readFully(header);
+            MediaType type = MediaTypeParser.parse(header);
+            if (type == MediaType.PNG || type == MediaType.PNG_NO_ALPHA) {
+                // Interlace method of IHDR, 1 for Adam7
+                return header[28] == 1 ? FORMAT_SUPPORTED : FORMAT_UNSUPPORTED;
+            }
+            if (type != MediaType.JPG) {
+                return FORMAT_UNSUPPORTED;
+            }
+            isJpeg = true;
+            long position = 2;
+            while (position + 4 <= length) {
+                accessFile.seek(position);
+                if (accessFile.read() != 0xFF) {
+                    return FORMAT_UNSUPPORTED;
+                }
+                int marker = accessFile.read();
+                if (marker == 0xFF) {
+                    // Fill byte
+                    position++;
+                    continue;
+                }
+                if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                    // SOF2, SOF6, SOF10, SOF14 are progressive
+                    return (marker & 0x3) == 2 ? FORMAT_SUPPORTED : FORMAT_UNSUPPORTED;
+                }
+                if (marker == 0xDA || marker == 0xD9) {
+                    return FORMAT_UNSUPPORTED;
+                }
+                position += 2 + accessFile.readUnsignedShort();
+            }
+            return FORMAT_UNKNOWN;
+        }
+    }
+}
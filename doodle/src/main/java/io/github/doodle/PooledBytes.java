@@ -0,0 +1,30 @@
+package io.github.doodle;
+
+import java.util.Arrays;
+
+/**
+ * Bytes in a buffer which may be larger than the length, usually from {@link ByteArrayPool},
+ * to save a copy of trimming.
+ * Call {@link #recycle()} when done, and don't touch the buffer after that.
+ */
+final class PooledBytes {
+    final byte[] buffer;
+    final int length;
+    private final boolean pooled;
+
+    PooledBytes(byte[] buffer, int length, boolean pooled) {
+        this.buffer = buffer;
+        this.length = length;
+        this.pooled = pooled;
+    }
+
+    byte[] toArray() {
+        return buffer.length == length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    void recycle() {
+        if (pooled) {
+            ByteArrayPool.recycleArray(buffer);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package io.github.doodle;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.*;
+
+import io.github.doodle.enums.Priority;
+
+/**
+ * Queue of prefetching, see {@link Request#prefetch()} and {@link Doodle#prefetch(String)}.
+ * <p>
+ * Prefetches start in FIFO order at {@link Priority#LOW}, only when no task is waiting in the
+ * io executor (the views are served first), and within the budget of {@link Config#setPrefetchBudget(long, int)}:
+ * the number of prefetches in flight, and the bytes downloaded per minute.
+ * <p>
+ * The prefetched paths are tracked, a later loading of the path (to a view or by get())
+ * counts as a hit, see {@link Metrics#getPrefetchUsedCount()}.
+ */
+final class Prefetcher {
+    private static final String TAG = "Prefetcher";
+
+    private static final long BUDGET_PERIOD = 60000L;
+    private static final int MAX_TRACKED = 512;
+    private static final int MAX_USED_RECORDS = 64;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable retryTask = () -> {
+        synchronized (Prefetcher.class) {
+            retryScheduled = false;
+        }
+        schedule();
+    };
+
+    private static final LinkedList<Entry> queue = new LinkedList<>();
+    private static int running = 0;
+    private static long periodStart = 0L;
+    private static long periodBytes = 0L;
+    private static boolean retryScheduled = false;
+
+    // Prefetched paths which have not been used
+    private static final Map<String, Long> prefetched = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED;
+        }
+    };
+    private static final ArrayDeque<String> usedPaths = new ArrayDeque<>(MAX_USED_RECORDS);
+    private static int completedCount = 0;
+    private static int usedCount = 0;
+    private static long totalBytes = 0L;
+
+    static {
+        Scheduler.ioExecutor.setIdleListener(Prefetcher::schedule);
+    }
+
+    /**
+     * @param request request to decode after downloading, null to download only.
+     */
+    static void enqueue(String path, Request request) {
+        synchronized (Prefetcher.class) {
+            queue.offer(new Entry(path, request));
+        }
+        schedule();
+    }
+
+    static synchronized void cancelAll() {
+        queue.clear();
+    }
+
+    static void schedule() {
+        List<Entry> toStart = null;
+        synchronized (Prefetcher.class) {
+            while (!queue.isEmpty() && running < Config.prefetchConcurrency) {
+                // Yield to the tasks waiting for downloading, the idle listener will call back.
+                if (Scheduler.ioExecutor.hasWaiting()) {
+                    break;
+                }
+                long now = SystemClock.uptimeMillis();
+                if (now - periodStart >= BUDGET_PERIOD) {
+                    periodStart = now;
+                    periodBytes = 0L;
+                }
+                if (Config.prefetchBytesPerMinute > 0 && periodBytes >= Config.prefetchBytesPerMinute) {
+                    if (!retryScheduled) {
+                        retryScheduled = true;
+                        sHandler.postDelayed(retryTask, periodStart + BUDGET_PERIOD - now);
+                    }
+                    break;
+                }
+                running++;
+                if (toStart == null) {
+                    toStart = new ArrayList<>(2);
+                }
+                toStart.add(queue.poll());
+            }
+        }
+        if (toStart != null) {
+            // Start out of the lock, the executors take their own locks.
+            for (Entry entry : toStart) {
+                boolean needDownloading = entry.path.startsWith("http")
+                        && !Downloader.hasRecord(new CacheKey(entry.path));
+                Scheduler.tagExecutor.execute(new CacheKey(entry.path), () -> run(entry),
+                        needDownloading, Priority.LOW, false, needDownloading ? Utils.getHost(entry.path) : null);
+            }
+        }
+    }
+
+    private static void run(Entry entry) {
+        String path = entry.path;
+        Request request = entry.request;
+        long bytes = 0L;
+        boolean success = false;
+        try {
+            boolean download = path.startsWith("http") && (request == null
+                    || (request.diskCacheStrategy.savaSource() && !request.onlyIfCached));
+            if (download) {
+                CacheKey key = new CacheKey(path);
+                if (Downloader.getCachePath(key) == null) {
+                    File file = Downloader.download(path, key);
+                    bytes = file.length();
+                }
+            }
+            if (request != null) {
+                // The source is cached now, decoding runs on the compute executor.
+                request.priority(Priority.LOW).preload();
+            }
+            success = true;
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        } finally {
+            finish(path, bytes, success);
+        }
+        schedule();
+    }
+
+    private static synchronized void finish(String path, long bytes, boolean success) {
+        running--;
+        periodBytes += bytes;
+        totalBytes += bytes;
+        if (success) {
+            completedCount++;
+            prefetched.put(path, SystemClock.uptimeMillis());
+        }
+        if (LogProxy.isDebug()) {
+            Log.d(TAG, "Prefetch " + (success ? "finished" : "failed") + ", bytes:" + bytes + ", path:" + path);
+        }
+    }
+
+    /**
+     * Called when the path is loaded for a view or by get().
+     */
+    static synchronized void markUsed(String path) {
+        if (prefetched.isEmpty() || prefetched.remove(path) == null) {
+            return;
+        }
+        usedCount++;
+        if (usedPaths.size() >= MAX_USED_RECORDS) {
+            usedPaths.pollFirst();
+        }
+        usedPaths.offerLast(path);
+    }
+
+    static synchronized int getCompletedCount() {
+        return completedCount;
+    }
+
+    static synchronized int getUsedCount() {
+        return usedCount;
+    }
+
+    static synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    static synchronized List<String> getUsedPaths() {
+        return new ArrayList<>(usedPaths);
+    }
+
+    private static class Entry {
+        final String path;
+        final Request request;
+
+        Entry(String path, Request request) {
+            this.path = path;
+            this.request = request;
+        }
+    }
+}
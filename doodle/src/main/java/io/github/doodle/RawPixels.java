@@ -0,0 +1,88 @@
+package io.github.doodle;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Result cache in raw pixels, see {@link Request#encodeRaw()}.
+ * <p>
+ * Format: magic (4 bytes), width (4 bytes), height (4 bytes), config (2 bytes), hasAlpha (2 bytes), pixels.
+ * <p>
+ * Restoring is a copy of pixels (from a mapped file) instead of decoding,
+ * at the cost of disk space (4 or 2 bytes per pixel).
+ */
+final class RawPixels {
+    private static final int MAGIC = 0x64726177;
+    static final int HEADER_SIZE = 16;
+
+    private static final int CONFIG_ARGB_8888 = 1;
+    private static final int CONFIG_RGB_565 = 2;
+
+    static boolean isSupported(Bitmap bitmap) {
+        Bitmap.Config config = bitmap.getConfig();
+        return config == Bitmap.Config.ARGB_8888 || config == Bitmap.Config.RGB_565;
+    }
+
+    static int getSize(Bitmap bitmap) {
+        return HEADER_SIZE + bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Write the bitmap to the buffer, the buffer should not be smaller than {@link #getSize(Bitmap)}.
+     */
+    static void encode(Bitmap bitmap, byte[] buffer) {
+        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, getSize(bitmap));
+        buf.putInt(MAGIC);
+        buf.putInt(bitmap.getWidth());
+        buf.putInt(bitmap.getHeight());
+        buf.putShort((short) (bitmap.getConfig() == Bitmap.Config.RGB_565 ? CONFIG_RGB_565 : CONFIG_ARGB_8888));
+        buf.putShort((short) (bitmap.hasAlpha() ? 1 : 0));
+        bitmap.copyPixelsToBuffer(buf);
+    }
+
+    static Bitmap decodeFile(String path) throws IOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(path, "r")) {
+            FileChannel channel = accessFile.getChannel();
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Restore the bitmap from the buffer (like a mapped slice of segment), pixels are copied to the bitmap directly.
+     */
+    static Bitmap decode(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+            throw new IOException("Invalid raw pixels");
+        }
+        int width = buf.getInt();
+        int height = buf.getInt();
+        int configCode = buf.getShort();
+        boolean hasAlpha = buf.getShort() != 0;
+        Bitmap.Config config = configCode == CONFIG_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Invalid raw pixels");
+        }
+        Bitmap bitmap = BitmapPool.get(width, height, config);
+        if (bitmap != null) {
+            try {
+                bitmap.reconfigure(width, height, config);
+            } catch (IllegalArgumentException e) {
+                bitmap = null;
+            }
+        }
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        if (buf.remaining() < bitmap.getRowBytes() * height) {
+            BitmapPool.put(bitmap);
+            throw new IOException("Raw pixels truncated");
+        }
+        bitmap.copyPixelsFromBuffer(buf);
+        bitmap.setHasAlpha(hasAlpha);
+        return bitmap;
+    }
+}
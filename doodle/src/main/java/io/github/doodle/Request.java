@@ -23,6 +23,9 @@ import io.github.doodle.enums.*;
  */
 public final class Request {
     private CacheKey key;
+    private CacheKey variantKey;
+    // Generation of the source folded into the key, see Downloader#getGeneration
+    int generation;
 
     // Source
     final String path;
@@ -42,6 +45,8 @@ public final class Request {
     // Loading behavior
     BitmapDecoder bitmapDecoder;
     boolean onlyIfCached = false;
+    boolean progressive = false;
+    long sourceTtl = Config.sourceTtl;
     MemoryCacheStrategy memoryCacheStrategy = MemoryCacheStrategy.LRU;
     DiskCacheStrategy diskCacheStrategy = DiskCacheStrategy.ALL;
     boolean keepOriginal = false;
@@ -54,7 +59,9 @@ public final class Request {
     int crossFadeDuration;
     boolean alwaysAnimation = false;
     int hostHash;
+    Priority priority = Priority.NORMAL;
     Bitmap.CompressFormat compressFormat = Config.defaultCompressFormat;
+    boolean encodeRaw = false;
     CompleteListener listener;
 
     // Target
@@ -192,6 +199,29 @@ public final class Request {
         return this;
     }
 
+    /**
+     * Set the time to live of the source cache, see {@link Config#setSourceTtl(long)}.
+     *
+     * @param ttl in milliseconds, 0 to never revalidate.
+     * @return Request
+     */
+    public Request sourceTtl(long ttl) {
+        this.sourceTtl = ttl;
+        return this;
+    }
+
+    /**
+     * Show the image progressively while downloading (only for view targets, and the source should be cached). <br>
+     * Progressive JPEG and interlaced PNG are decoded periodically with the received data,
+     * the intermediate bitmaps are set to the view until the final result arrives.
+     *
+     * @return Request
+     */
+    public Request progressive() {
+        this.progressive = true;
+        return this;
+    }
+
     /**
      * Set decoding format, to decide the request to use which {@link Bitmap.Config}.
      *
@@ -219,6 +249,19 @@ public final class Request {
         return this;
     }
 
+    /**
+     * Save result bitmap as raw pixels instead of compressing, {@link #encodeFormat} is ignored.
+     * Loading from result cache is a copy of pixels, without decoding.
+     * It takes more disk space (4 bytes per pixel for ARGB_8888, 2 bytes for RGB_565),
+     * suitable for small and frequently shown images (like avatars and icons).
+     *
+     * @return Request
+     */
+    public Request encodeRaw() {
+        this.encodeRaw = true;
+        return this;
+    }
+
     public Request transform(Transformation transformation) {
         if (transformation == null) {
             throw new IllegalArgumentException("Transformation can not be null.");
@@ -345,6 +388,20 @@ public final class Request {
         return this;
     }
 
+    /**
+     * Set priority of the loading task, {@link Priority#NORMAL} by default.
+     * <p>
+     * Waiting tasks with higher priority start first.
+     * In the same priority, the tasks bound to view start in LIFO order
+     * (the views on screen come later when scrolling), other tasks start in FIFO order.
+     */
+    public Request priority(Priority priority) {
+        if (priority != null) {
+            this.priority = priority;
+        }
+        return this;
+    }
+
     /**
      * Set options, for BitmapDecoder/DrawableDecoder.
      * BitmapDecoder/DrawableDecoder intercept every request.
@@ -383,6 +440,19 @@ public final class Request {
         fillSizeAndLoad(targetWidth, targetHeight);
     }
 
+    /**
+     * Prefetch the bitmap in background, for the images to show soon (like the next page). <br/>
+     * assign sizes with {@link #override}, otherwise it will load with original size.
+     * <p>
+     * Unlike {@link #preload()}, prefetches are queued, and start at {@link Priority#LOW}
+     * when no loading is waiting for downloading, within the budget of {@link Config#setPrefetchBudget(long, int)}.
+     */
+    public void prefetch() {
+        if (!TextUtils.isEmpty(path)) {
+            Prefetcher.enqueue(path, this);
+        }
+    }
+
     /**
      * Get the bitmap on current thread within 3000 millis.
      * <p>
@@ -427,6 +497,20 @@ public final class Request {
         fillSizeAndLoad(targetWidth, targetHeight);
     }
 
+    /**
+     * Load huge image by tiles, for zooming and panning. <br/>
+     * Only source, decode format, disk cache strategy and priority take effect,
+     * the result is not cached to memory cache or result cache.
+     *
+     * @param listener callback on main thread
+     * @return the tiled image, call {@link TiledImage#recycle()} when it's no longer used.
+     */
+    public TiledImage intoTiles(TileListener listener) {
+        TiledImage image = new TiledImage(this, listener);
+        image.open();
+        return image;
+    }
+
     /**
      * Listen if success to get result.
      * <p>
@@ -511,7 +595,16 @@ public final class Request {
                 && (params.height > 0 || params.height == ViewGroup.LayoutParams.WRAP_CONTENT);
     }
 
-    private void fillSizeAndLoad(int width, int height) {
+    /**
+     * Load without target for {@link LookaheadPrefetcher}.
+     *
+     * @return the worker started, null if hit the memory cache.
+     */
+    Worker lookahead() {
+        return fillSizeAndLoad(targetWidth, targetHeight);
+    }
+
+    private Worker fillSizeAndLoad(int width, int height) {
         targetWidth = width;
         targetHeight = height;
 
@@ -537,27 +630,53 @@ public final class Request {
                     targetHeight -= verticalPadding;
                 }
             }
+            LookaheadPrefetcher.recordBound(this);
         }
 
         try {
-            Controller.start(this);
+            return Controller.start(this);
         } catch (Throwable e) {
             LogProxy.e("Doodle", e);
         }
+        return null;
     }
 
     CacheKey getKey() {
         if (key == null) {
-            key = buildKey();
+            key = buildKey(true);
+            // Build it at the same time, the decoding params may be changed while decoding.
+            if (VariantIndex.isEligible(this)) {
+                variantKey = buildKey(false);
+            }
         }
         return key;
     }
 
-    private CacheKey buildKey() {
+    /**
+     * @return key without target size, to find results of other sizes, null if not eligible.
+     * @see VariantIndex
+     */
+    CacheKey getVariantKey() {
+        getKey();
+        return variantKey;
+    }
+
+    private CacheKey buildKey(boolean withSize) {
         StringBuilder builder = new StringBuilder(128);
-        builder.append(TextUtils.isEmpty(sourceKey) ? path : sourceKey)
-                .append(':').append('s').append(targetWidth).append('x').append(targetHeight)
-                .append(':').append('c').append(clipType.nativeChar)
+        builder.append(TextUtils.isEmpty(sourceKey) ? path : sourceKey);
+        if (withSize) {
+            builder.append(':').append('s').append(targetWidth).append('x').append(targetHeight);
+        } else {
+            builder.append(':').append('v');
+        }
+        if (path.startsWith("http")) {
+            // Changed source (see Downloader#revalidate) gets new keys.
+            generation = Downloader.getGeneration(path);
+            if (generation > 0) {
+                builder.append(':').append('g').append(generation);
+            }
+        }
+        builder.append(':').append('c').append(clipType.nativeChar)
                 .append(':').append('f').append(decodeFormat.nativeChar)
                 .append(':').append('u').append(enableUpscale ? '1' : '0')
                 .append(':').append('d').append(enableDrawable ? '1' : '0');
@@ -1,7 +1,11 @@
 package io.github.doodle;
 
+import io.github.doodle.enums.Priority;
+
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.*;
 
 /**
@@ -10,20 +14,31 @@ import java.util.*;
 final class Scheduler {
     private static final int CUP_COUNT = Runtime.getRuntime().availableProcessors();
     private static final int WINDOW_SIZE = Math.min(Math.max(2, CUP_COUNT), 4);
+    private static final Priority[] PRIORITIES = Priority.values();
 
     // for computation tasks
-    static final PipeExecutor cpExecutor = new PipeExecutor(WINDOW_SIZE);
+    static final PipeExecutor cpExecutor = new PipeExecutor(WINDOW_SIZE, 2, Math.max(WINDOW_SIZE, CUP_COUNT));
 
     // for tasks with downloading
-    static final PipeExecutor ioExecutor = new PipeExecutor(8);
+    static final PipeExecutor ioExecutor = new PipeExecutor(8, 4, 16);
+
+    static {
+        // Same as the connections per host of browsers.
+        ioExecutor.setHostLimit(6);
+    }
 
     static final TagExecutor tagExecutor = new TagExecutor();
 
+    // Use to storage result bitmap, encoding in parallel (a slow encoding not to hold up the others).
+    static final PipeExecutor storageExecutor = new PipeExecutor(Math.min(Math.max(2, CUP_COUNT / 2), 4));
+
     // Windows size is one, tasks execute in serial.
-    // Use to storage result bitmap.
-    static final PipeExecutor storageExecutor = new PipeExecutor(1);
+    // Use to do the maintenance jobs of disk caches (like eviction).
+    static final PipeExecutor maintainExecutor = new PipeExecutor(1);
 
     private static Executor realExecutor = null;
+    // Only hands the delayed tasks to the executors, never runs them.
+    private static ScheduledExecutorService timer = null;
 
     static void setExecutor(Executor executor) {
         if (executor != null) {
@@ -38,6 +53,17 @@ final class Scheduler {
         return realExecutor;
     }
 
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "doodle-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
     /**
      * Tasks with same tag executes serially.
      * Tasks in different tag executes concurrently.
@@ -55,11 +81,20 @@ final class Scheduler {
         private static final Set<CacheKey> scheduledTags = new HashSet<>();
         private static final Map<CacheKey, LinkedList<Task>> waitingQueues = new HashMap<>();
 
-        public synchronized void execute(CacheKey tag, Runnable r, boolean needDownloading) {
+        public void execute(CacheKey tag, Runnable r, boolean needDownloading) {
+            execute(tag, r, needDownloading, Priority.NORMAL, false, null);
+        }
+
+        /**
+         * @param host host of the url to download (see {@link Utils#getHost(String)}), for the host limit,
+         *             null if no downloading.
+         */
+        public synchronized void execute(CacheKey tag, Runnable r, boolean needDownloading,
+                                         Priority priority, boolean lifo, String host) {
             if (r == null) {
                 return;
             }
-            Task task = wrapTask(r, tag, needDownloading);
+            Task task = wrapTask(r, tag, needDownloading, priority, lifo, host);
             if (!scheduledTags.contains(tag)) {
                 start(tag, task);
             } else {
@@ -74,15 +109,42 @@ final class Scheduler {
 
         private void start(CacheKey tag, Task task) {
             scheduledTags.add(tag);
-            if (task.needDownloading) {
-                ioExecutor.execute(task);
-            } else {
-                cpExecutor.execute(task);
+            getPipe(task).execute(task);
+        }
+
+        private static PipeExecutor getPipe(Task task) {
+            return task.needDownloading ? ioExecutor : cpExecutor;
+        }
+
+        /**
+         * Remove the task if it is not started (waiting for tag, or in the queue of PipeExecutor).
+         */
+        synchronized void remove(Runnable r) {
+            for (Map.Entry<CacheKey, LinkedList<Task>> entry : waitingQueues.entrySet()) {
+                Iterator<Task> it = entry.getValue().iterator();
+                while (it.hasNext()) {
+                    if (it.next().r == r) {
+                        it.remove();
+                        if (entry.getValue().isEmpty()) {
+                            waitingQueues.remove(entry.getKey());
+                        }
+                        return;
+                    }
+                }
+            }
+            Task task = ioExecutor.remove(r);
+            if (task == null) {
+                task = cpExecutor.remove(r);
+            }
+            if (task != null) {
+                // The task will never run, release its tag.
+                scheduleNext(task.tag);
             }
         }
 
-        private Task wrapTask(Runnable r, CacheKey tag, boolean needDownloading){
-            return new Task(r, needDownloading) {
+        private Task wrapTask(Runnable r, CacheKey tag, boolean needDownloading, Priority priority, boolean lifo,
+                              String host) {
+            return new Task(r, tag, needDownloading, priority, lifo, host) {
                 @Override
                 public void run() {
                     try {
@@ -110,11 +172,19 @@ final class Scheduler {
 
     private static abstract class Task implements Runnable {
         final Runnable r;
+        final CacheKey tag;
         final boolean needDownloading;
+        final Priority priority;
+        final boolean lifo;
+        final String host;
 
-        Task(Runnable runnable, boolean needDownloading) {
+        Task(Runnable runnable, CacheKey tag, boolean needDownloading, Priority priority, boolean lifo, String host) {
             this.r = runnable;
+            this.tag = tag;
             this.needDownloading = needDownloading;
+            this.priority = priority;
+            this.lifo = lifo;
+            this.host = host;
         }
     }
 
@@ -122,77 +192,401 @@ final class Scheduler {
     /**
      * Support control the currency. <br>
      * Support change priority by state(pause/resume) of UI component.
+     * <p>
+     * Waiting tasks start by priority, tasks of paused UI components start after all others.
+     * In the same priority, LIFO tasks (bound to views) start before FIFO tasks, the newest first.
+     * <p>
+     * If the bounds of window are not equal, the window size adapts to the throughput (hill climbing):
+     * when tasks are waiting, the window moves a step per sample period,
+     * keeps the direction if the throughput goes up, turns around if it goes down,
+     * and steps down if no difference (to use less threads and memory for the same throughput).
+     * <p>
+     * Tasks with host (downloading) are limited by the host limit, so that a slow host can't take all the window.
+     * In the same priority, waiting tasks of different hosts start in round-robin order
+     * (the host served least recently first), tasks of the same host keep their order.
      */
     static class PipeExecutor implements Executor {
-        private final LinkedList<Runnable> frontList = new LinkedList<>();
+        private static final long SAMPLE_PERIOD = 1000000000L;
+        private static final int MAX_HOSTS = 64;
+        private static final float SLOW_FACTOR = 2f;
+
+        // Index by priority
+        private final List<LinkedList<Runnable>> frontLists = new ArrayList<>(PRIORITIES.length);
         private final LinkedList<Runnable> backList = new LinkedList<>();
-        private final int windowSize;
+        private int windowSize;
+        private int minWindow;
+        private int maxWindow;
         private int count = 0;
 
+        // States of sampling
+        private long periodStart = System.nanoTime();
+        private int completed = 0;
+        private boolean saturated = false;
+        private float lastThroughput = 0f;
+        private int direction = 1;
+        private volatile float throughput = 0f;
+
+        private volatile Runnable idleListener;
+
+        // Max running tasks per host, 0 for no limit.
+        private int hostLimit = 0;
+        private final Map<String, HostState> hosts = new HashMap<>();
+        private long serveCount = 0;
+
         private final Executor executor = getExecutor();
 
         PipeExecutor(int windowSize) {
-            this.windowSize = windowSize > 0 ? windowSize : 1;
+            this(windowSize, windowSize, windowSize);
+        }
+
+        PipeExecutor(int windowSize, int minWindow, int maxWindow) {
+            this.minWindow = Math.max(minWindow, 1);
+            this.maxWindow = Math.max(maxWindow, this.minWindow);
+            this.windowSize = Math.min(Math.max(windowSize, this.minWindow), this.maxWindow);
+            for (int i = 0; i < PRIORITIES.length; i++) {
+                frontLists.add(new LinkedList<>());
+            }
+        }
+
+        synchronized void setWindowBounds(int min, int max) {
+            minWindow = min;
+            maxWindow = max;
+            windowSize = Math.min(Math.max(windowSize, min), max);
+            startQueued();
+        }
+
+        synchronized int getWindowSize() {
+            return windowSize;
+        }
+
+        synchronized void setHostLimit(int limit) {
+            hostLimit = Math.max(limit, 0);
+            startQueued();
+        }
+
+        /**
+         * @return number of running tasks per host.
+         */
+        synchronized Map<String, Integer> getHostSlots() {
+            Map<String, Integer> slots = new HashMap<>();
+            for (Map.Entry<String, HostState> entry : hosts.entrySet()) {
+                if (entry.getValue().running > 0) {
+                    slots.put(entry.getKey(), entry.getValue().running);
+                }
+            }
+            return slots;
+        }
+
+        /**
+         * @return average time (ms) of the tasks per host.
+         */
+        synchronized Map<String, Long> getHostTimes() {
+            Map<String, Long> times = new HashMap<>();
+            for (Map.Entry<String, HostState> entry : hosts.entrySet()) {
+                times.put(entry.getKey(), (long) entry.getValue().averageTime);
+            }
+            return times;
+        }
+
+        /**
+         * @return number of running tasks of the slow hosts,
+         * which average time is more than twice the median of hosts.
+         */
+        synchronized int getSlowHostSlots() {
+            float[] times = new float[hosts.size()];
+            int n = 0;
+            for (HostState state : hosts.values()) {
+                if (state.averageTime > 0f) {
+                    times[n++] = state.averageTime;
+                }
+            }
+            if (n < 2) {
+                return 0;
+            }
+            Arrays.sort(times, 0, n);
+            // Lower median, with two hosts it's the faster one.
+            float threshold = times[(n - 1) / 2] * SLOW_FACTOR;
+            int slots = 0;
+            for (HostState state : hosts.values()) {
+                if (state.running > 0 && state.averageTime > threshold) {
+                    slots += state.running;
+                }
+            }
+            return slots;
+        }
+
+        /**
+         * @return tasks completed per second in the last sample period.
+         */
+        float getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * Set the listener to call when a task finished and no task is waiting,
+         * it's called out of the lock.
+         */
+        void setIdleListener(Runnable listener) {
+            idleListener = listener;
+        }
+
+        /**
+         * @return true if there are tasks waiting (not including the tasks of paused UI components).
+         */
+        synchronized boolean hasWaiting() {
+            return !isFrontEmpty();
+        }
+
+        /**
+         * Execute the task after the delay, without going through the main thread.
+         */
+        void schedule(Runnable r, long delayMillis) {
+            if (r != null) {
+                getTimer().schedule(() -> execute(r), delayMillis, TimeUnit.MILLISECONDS);
+            }
         }
 
         public synchronized void execute(Runnable r) {
             if (r == null) {
                 return;
             }
-            if (count < windowSize) {
+            if (count < windowSize && isHostAvailable(getHost(r))) {
                 start(r);
             } else {
-                frontList.offer(r);
+                offer(r);
+                if (count >= windowSize) {
+                    saturated = true;
+                }
             }
         }
 
         private void start(Runnable r) {
             count++;
+            String host = getHost(r);
+            if (host != null) {
+                HostState state = hosts.get(host);
+                if (state == null) {
+                    state = new HostState();
+                    hosts.put(host, state);
+                }
+                state.running++;
+                state.lastServed = ++serveCount;
+            }
             executor.execute(() -> {
+                long startTime = System.nanoTime();
                 try {
                     r.run();
                 } catch (Throwable e) {
                     LogProxy.e("Doodle", e);
                 } finally {
-                    scheduleNext();
+                    Runnable listener = idleListener;
+                    if (scheduleNext(host, (System.nanoTime() - startTime) / 1000000L) && listener != null) {
+                        listener.run();
+                    }
                 }
             });
         }
 
-        private synchronized void scheduleNext(){
+        /**
+         * @return true if there is no task waiting.
+         */
+        private synchronized boolean scheduleNext(String host, long time) {
             count--;
-            if (count < windowSize) {
+            completed++;
+            if (host != null) {
+                onHostFinished(host, time);
+            }
+            adjustWindow();
+            startQueued();
+            return count < windowSize && isQueueEmpty();
+        }
+
+        private void onHostFinished(String host, long time) {
+            HostState state = hosts.get(host);
+            if (state != null) {
+                state.running--;
+                // Not less than 1, zero means no sample.
+                float t = Math.max(time, 1L);
+                state.averageTime = state.averageTime == 0f ? t : state.averageTime * 0.8f + t * 0.2f;
+            }
+            if (hosts.size() > MAX_HOSTS) {
+                // Drop the idle host served least recently.
+                String eldest = null;
+                long eldestServed = Long.MAX_VALUE;
+                for (Map.Entry<String, HostState> entry : hosts.entrySet()) {
+                    HostState s = entry.getValue();
+                    if (s.running == 0 && s.lastServed < eldestServed) {
+                        eldest = entry.getKey();
+                        eldestServed = s.lastServed;
+                    }
+                }
+                if (eldest != null) {
+                    hosts.remove(eldest);
+                }
+            }
+        }
+
+        private boolean isHostAvailable(String host) {
+            if (host == null || hostLimit <= 0) {
+                return true;
+            }
+            HostState state = hosts.get(host);
+            return state == null || state.running < hostLimit;
+        }
+
+        private static String getHost(Runnable r) {
+            return r instanceof Task ? ((Task) r).host : null;
+        }
+
+        private void startQueued() {
+            while (count < windowSize) {
                 Runnable next = poll();
-                if (next != null) {
-                    start(next);
+                if (next == null) {
+                    break;
+                }
+                start(next);
+            }
+        }
+
+        private void adjustWindow() {
+            long now = System.nanoTime();
+            long elapsed = now - periodStart;
+            if (elapsed < SAMPLE_PERIOD) {
+                return;
+            }
+            float tps = completed * 1e9f / elapsed;
+            // Only adapt when there are tasks waiting, otherwise the window is not the bottleneck.
+            if (minWindow < maxWindow && saturated) {
+                if (tps < lastThroughput * 0.95f) {
+                    direction = -direction;
+                } else if (tps <= lastThroughput * 1.05f) {
+                    direction = -1;
+                }
+                windowSize = Math.min(Math.max(windowSize + direction, minWindow), maxWindow);
+            }
+            lastThroughput = tps;
+            throughput = tps;
+            completed = 0;
+            periodStart = now;
+            saturated = count >= windowSize && !isQueueEmpty();
+        }
+
+        private boolean isQueueEmpty() {
+            return isFrontEmpty() && backList.isEmpty();
+        }
+
+        private boolean isFrontEmpty() {
+            for (LinkedList<Runnable> list : frontLists) {
+                if (!list.isEmpty()) {
+                    return false;
                 }
             }
+            return true;
+        }
+
+        private void offer(Runnable r) {
+            if (r instanceof Task) {
+                Task task = (Task) r;
+                LinkedList<Runnable> list = frontLists.get(task.priority.ordinal());
+                if (task.lifo) {
+                    list.addFirst(r);
+                } else {
+                    list.addLast(r);
+                }
+            } else {
+                frontLists.get(Priority.NORMAL.ordinal()).addLast(r);
+            }
         }
 
         private Runnable poll() {
-            Runnable r = frontList.poll();
-            return (r != null) ? r : backList.poll();
+            for (int i = frontLists.size() - 1; i >= 0; i--) {
+                Runnable r = pollFrom(frontLists.get(i));
+                if (r != null) {
+                    return r;
+                }
+            }
+            return pollFrom(backList);
+        }
+
+        /**
+         * Poll the first task of the available host served least recently,
+         * tasks without host, and the hosts never served, go first.
+         */
+        private Runnable pollFrom(LinkedList<Runnable> list) {
+            if (list.isEmpty()) {
+                return null;
+            }
+            Runnable best = null;
+            long bestServed = Long.MAX_VALUE;
+            for (Runnable r : list) {
+                String host = getHost(r);
+                if (!isHostAvailable(host)) {
+                    continue;
+                }
+                HostState state = host != null ? hosts.get(host) : null;
+                long served = state != null ? state.lastServed : 0L;
+                if (served < bestServed) {
+                    best = r;
+                    bestServed = served;
+                    if (served == 0L) {
+                        break;
+                    }
+                }
+            }
+            if (best != null) {
+                list.removeFirstOccurrence(best);
+            }
+            return best;
+        }
+
+        /**
+         * @return the removed task, or null if not found.
+         */
+        synchronized Task remove(Runnable r) {
+            for (LinkedList<Runnable> list : frontLists) {
+                Runnable e = removeFrom(list, r);
+                if (e != null) {
+                    return e instanceof Task ? (Task) e : null;
+                }
+            }
+            Runnable e = removeFrom(backList, r);
+            return e instanceof Task ? (Task) e : null;
         }
 
         synchronized void pushBack(Runnable r) {
-            flip(frontList, backList, r);
+            for (LinkedList<Runnable> list : frontLists) {
+                Runnable e = removeFrom(list, r);
+                if (e != null) {
+                    backList.offer(e);
+                    return;
+                }
+            }
         }
 
         synchronized void popFront(Runnable r) {
-            flip(backList, frontList, r);
+            Runnable e = removeFrom(backList, r);
+            if (e != null) {
+                offer(e);
+            }
         }
 
-        private void flip(LinkedList<Runnable> aList, LinkedList<Runnable> bList, Runnable r) {
-            if (aList.isEmpty()) return;
-            Iterator<Runnable> it = aList.iterator();
+        private static class HostState {
+            int running;
+            long lastServed;
+            float averageTime;
+        }
+
+        private static Runnable removeFrom(LinkedList<Runnable> list, Runnable r) {
+            if (list.isEmpty()) return null;
+            Iterator<Runnable> it = list.iterator();
             while (it.hasNext()) {
                 Runnable e = it.next();
                 if (e == r || ((e instanceof Task) && ((Task) e).r == r)) {
                     it.remove();
-                    bList.offer(e);
-                    break;
+                    return e;
                 }
             }
+            return null;
         }
     }
 }
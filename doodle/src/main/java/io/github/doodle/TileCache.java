@@ -0,0 +1,98 @@
+package io.github.doodle;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded tiles of all {@link TiledImage}, in one LRU cache.
+ * <p>
+ * Tiles and previews share the capacity of memory cache with {@link LruCache}:
+ * their bytes are reserved from it, and the tiles take at most half of the capacity (minus previews).
+ * Tiles visible in the last frame of their image are never evicted, except clearing.
+ * <p>
+ * All methods should be called on main thread, except {@link #trimMemory(int)} and {@link #clearMemory()}.
+ */
+final class TileCache {
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private static final Map<TiledImage.Tile, TiledImage> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long tileBytes = 0;
+    private static long previewBytes = 0;
+
+    static void touch(TiledImage.Tile tile) {
+        cache.get(tile);
+    }
+
+    static void put(TiledImage owner, TiledImage.Tile tile) {
+        cache.put(tile, owner);
+        int bytes = Utils.getBytesCount(tile.bitmap);
+        tileBytes += bytes;
+        LruCache.reserve(bytes);
+        trimToSize(Config.memoryCacheCapacity / 2 - previewBytes, false);
+    }
+
+    /**
+     * Remove the tile without evicting (the owner is recycling).
+     */
+    static void remove(TiledImage.Tile tile) {
+        if (cache.remove(tile) != null) {
+            int bytes = Utils.getBytesCount(tile.bitmap);
+            tileBytes -= bytes;
+            LruCache.reserve(-bytes);
+        }
+    }
+
+    /**
+     * @param bytes positive when the preview decoded, negative when it's released.
+     */
+    static void chargePreview(long bytes) {
+        previewBytes += bytes;
+        LruCache.reserve(bytes);
+    }
+
+    static void clearMemory() {
+        runOnMainThread(() -> trimToSize(0, true));
+    }
+
+    static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            clearMemory();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            runOnMainThread(() -> trimToSize(tileBytes >> 1, false));
+        }
+    }
+
+    private static void runOnMainThread(Runnable r) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            r.run();
+        } else {
+            sHandler.post(r);
+        }
+    }
+
+    /**
+     * @param evictVisible true to evict the visible tiles too, the views draw the preview until reloaded.
+     */
+    private static void trimToSize(long size, boolean evictVisible) {
+        Iterator<Map.Entry<TiledImage.Tile, TiledImage>> it = cache.entrySet().iterator();
+        while (tileBytes > size && it.hasNext()) {
+            Map.Entry<TiledImage.Tile, TiledImage> entry = it.next();
+            TiledImage.Tile tile = entry.getKey();
+            TiledImage owner = entry.getValue();
+            if (!evictVisible && owner.isVisible(tile)) {
+                continue;
+            }
+            it.remove();
+            int bytes = Utils.getBytesCount(tile.bitmap);
+            tileBytes -= bytes;
+            LruCache.reserve(-bytes);
+            owner.onEvicted(tile);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package io.github.doodle;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+
+import io.github.doodle.enums.DecodeFormat;
+import io.github.doodle.interfaces.TileListener;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Huge image (like panorama) decoded by tiles, for zooming and panning.
+ * <p>
+ * The source is opened once, keeping a few {@link BitmapRegionDecoder} (tiles decode in parallel on the compute executor).
+ * A preview which fits the screen is decoded when opening.
+ * When zooming in, the image is divided into a grid of tiles for the sample size (power of two) of the scale,
+ * each tile is {@link #TILE_SIZE} pixels after sampling.
+ * Decoded tiles of all images are kept in one LRU cache ({@link TileCache}),
+ * tiles and preview are charged to the capacity of memory cache, and trimmed by {@link Doodle#trimMemory(int)}.
+ * Tiles of the last frame are never evicted (except clearing).
+ * <p>
+ * Except opening, all methods should be called on main thread.
+ * The view should call {@link #getTiles} when drawing and not hold the tiles after drawing,
+ * because bitmaps of evicted tiles are reused.
+ */
+public final class TiledImage {
+    private static final String TAG = "TiledImage";
+
+    public static final int TILE_SIZE = 512;
+    private static final int DECODER_COUNT = Math.min(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), 4);
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private final Request request;
+    private final TileListener listener;
+
+    // Set on opening, read after onReady
+    private int width;
+    private int height;
+    private int orientation;
+    private int previewSampleSize;
+    private Bitmap preview;
+    private Bitmap.Config config;
+
+    private final List<BitmapRegionDecoder> idleDecoders = new ArrayList<>(DECODER_COUNT);
+    // Decoded tiles, see TileCache
+    private final Map<Long, Tile> decoded = new HashMap<>();
+    private final LinkedHashMap<Long, Tile> waiting = new LinkedHashMap<>();
+    private final Map<Long, Tile> loading = new HashMap<>();
+    private final Set<Long> visible = new HashSet<>();
+    private boolean ready = false;
+    private boolean recycled = false;
+
+    public static final class Tile {
+        /**
+         * Region of the tile in the source image.
+         */
+        public final Rect rect;
+        public final int sampleSize;
+        final long key;
+        Bitmap bitmap;
+
+        Tile(Rect rect, int sampleSize, long key) {
+            this.rect = rect;
+            this.sampleSize = sampleSize;
+            this.key = key;
+        }
+
+        /**
+         * @return bitmap of the tile, null if not loaded yet (draw the preview instead).
+         */
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+    }
+
+    TiledImage(Request request, TileListener listener) {
+        this.request = request;
+        this.listener = listener;
+    }
+
+    void open() {
+        CacheKey tag = new CacheKey(request.path);
+        boolean needDownloading = request.path.startsWith("http") && !Downloader.hasRecord(tag);
+        Scheduler.tagExecutor.execute(tag, this::openSource, needDownloading, request.priority, false,
+                needDownloading ? Utils.getHost(request.path) : null);
+    }
+
+    private void openSource() {
+        List<BitmapRegionDecoder> decoders = new ArrayList<>(DECODER_COUNT);
+        boolean success = false;
+        PooledBytes data = null;
+        try (DataFetcher dataFetcher = DataFetcher.parse(request)) {
+            String filePath = dataFetcher.getFilePath();
+            // Decoders copy the data (not shareable), so the buffer could be recycled after creating them.
+            data = filePath == null ? dataFetcher.getPooledData() : null;
+            for (int i = 0; i < DECODER_COUNT; i++) {
+                BitmapRegionDecoder decoder = filePath != null
+                        ? BitmapRegionDecoder.newInstance(filePath, false)
+                        : BitmapRegionDecoder.newInstance(data.buffer, 0, data.length, false);
+                if (decoder == null) {
+                    throw new IOException("Create region decoder failed");
+                }
+                decoders.add(decoder);
+            }
+            if (data != null) {
+                data.recycle();
+                data = null;
+            }
+            DecodeFormat format = request.decodeFormat;
+            boolean isRGB565 = (format == DecodeFormat.RGB_565) ||
+                    (format == DecodeFormat.AUTO && dataFetcher.getMediaType().noAlpha());
+            config = isRGB565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            orientation = dataFetcher.getOrientation();
+            BitmapRegionDecoder first = decoders.get(0);
+            width = first.getWidth();
+            height = first.getHeight();
+            Point dimens = Utils.getDisplayDimens();
+            int maxSide = Math.max(dimens.x, dimens.y);
+            int sampleSize = 1;
+            while (Math.max(width, height) / sampleSize > maxSide) {
+                sampleSize <<= 1;
+            }
+            previewSampleSize = sampleSize;
+            preview = decodeRegion(first, new Rect(0, 0, width, height), sampleSize);
+            success = preview != null;
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        } finally {
+            if (data != null) {
+                data.recycle();
+            }
+        }
+        if (!success) {
+            for (BitmapRegionDecoder decoder : decoders) {
+                decoder.recycle();
+            }
+            decoders.clear();
+        }
+        boolean result = success;
+        sHandler.post(() -> onOpened(decoders, result));
+    }
+
+    private void onOpened(List<BitmapRegionDecoder> decoders, boolean success) {
+        if (recycled) {
+            for (BitmapRegionDecoder decoder : decoders) {
+                decoder.recycle();
+            }
+            preview = null;
+            return;
+        }
+        idleDecoders.addAll(decoders);
+        ready = success;
+        if (success) {
+            TileCache.chargePreview(Utils.getBytesCount(preview));
+        }
+        if (listener != null) {
+            listener.onReady(success);
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return EXIF orientation of the source (0 if undefined),
+     * tiles and preview are not rotated, the view should apply the orientation when drawing.
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return the whole image which fits the screen, sampled by {@link #getPreviewSampleSize()}.
+     */
+    public Bitmap getPreview() {
+        return preview;
+    }
+
+    public int getPreviewSampleSize() {
+        return previewSampleSize;
+    }
+
+    /**
+     * @param scale pixels on screen per pixel of the source.
+     * @return the power of two sample size for drawing in the scale.
+     */
+    public static int getSampleSize(float scale) {
+        int sampleSize = 1;
+        while (scale > 0f && sampleSize * 2 * scale <= 1f) {
+            sampleSize <<= 1;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Get tiles covering the visible region, and schedule decoding of the missing tiles.
+     * Decoding of the tiles which are not visible any more are dropped.
+     *
+     * @param visibleRect visible region in source coordinates.
+     * @param scale       pixels on screen per pixel of the source.
+     * @return tiles covering the region, empty if the preview is clear enough for the scale.
+     */
+    public List<Tile> getTiles(Rect visibleRect, float scale) {
+        List<Tile> tiles = new ArrayList<>();
+        visible.clear();
+        waiting.clear();
+        if (!ready || scale <= 0f) {
+            return tiles;
+        }
+        int sampleSize = getSampleSize(scale);
+        int left = Math.max(visibleRect.left, 0);
+        int top = Math.max(visibleRect.top, 0);
+        int right = Math.min(visibleRect.right, width);
+        int bottom = Math.min(visibleRect.bottom, height);
+        if (sampleSize >= previewSampleSize || left >= right || top >= bottom) {
+            return tiles;
+        }
+        int span = TILE_SIZE * sampleSize;
+        int level = Integer.numberOfTrailingZeros(sampleSize);
+        for (int row = top / span, lastRow = (bottom - 1) / span; row <= lastRow; row++) {
+            for (int col = left / span, lastCol = (right - 1) / span; col <= lastCol; col++) {
+                long key = ((long) level << 56) | ((long) row << 28) | col;
+                visible.add(key);
+                Tile tile = decoded.get(key);
+                if (tile != null) {
+                    TileCache.touch(tile);
+                } else {
+                    tile = loading.get(key);
+                    if (tile == null) {
+                        Rect rect = new Rect(col * span, row * span,
+                                Math.min((col + 1) * span, width), Math.min((row + 1) * span, height));
+                        tile = new Tile(rect, sampleSize, key);
+                        waiting.put(key, tile);
+                    }
+                }
+                tiles.add(tile);
+            }
+        }
+        scheduleTiles();
+        return tiles;
+    }
+
+    private void scheduleTiles() {
+        Iterator<Map.Entry<Long, Tile>> it = waiting.entrySet().iterator();
+        while (it.hasNext() && !idleDecoders.isEmpty()) {
+            Map.Entry<Long, Tile> entry = it.next();
+            it.remove();
+            long key = entry.getKey();
+            Tile tile = entry.getValue();
+            BitmapRegionDecoder decoder = idleDecoders.remove(idleDecoders.size() - 1);
+            loading.put(key, tile);
+            Scheduler.cpExecutor.execute(() -> decodeTile(key, tile, decoder));
+        }
+    }
+
+    private void decodeTile(long key, Tile tile, BitmapRegionDecoder decoder) {
+        Bitmap bitmap = null;
+        try {
+            bitmap = decodeRegion(decoder, tile.rect, tile.sampleSize);
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        }
+        Bitmap result = bitmap;
+        sHandler.post(() -> onTileDecoded(key, tile, result, decoder));
+    }
+
+    private Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect rect, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        options.inMutable = true;
+        int w = Math.max(rect.width() / sampleSize, 1);
+        int h = Math.max(rect.height() / sampleSize, 1);
+        Bitmap reuse = BitmapPool.get(w, h, config);
+        if (reuse != null) {
+            try {
+                reuse.reconfigure(w, h, config);
+                options.inBitmap = reuse;
+                return decoder.decodeRegion(rect, options);
+            } catch (IllegalArgumentException e) {
+                options.inBitmap = null;
+            }
+        }
+        return decoder.decodeRegion(rect, options);
+    }
+
+    private void onTileDecoded(long key, Tile tile, Bitmap bitmap, BitmapRegionDecoder decoder) {
+        loading.remove(key);
+        if (recycled) {
+            decoder.recycle();
+            BitmapPool.put(bitmap);
+            return;
+        }
+        idleDecoders.add(decoder);
+        if (bitmap != null) {
+            tile.bitmap = bitmap;
+            decoded.put(key, tile);
+            TileCache.put(this, tile);
+            if (listener != null) {
+                listener.onTileLoaded();
+            }
+        }
+        scheduleTiles();
+    }
+
+    boolean isVisible(Tile tile) {
+        return visible.contains(tile.key);
+    }
+
+    /**
+     * Called by {@link TileCache} when the tile is evicted.
+     */
+    void onEvicted(Tile tile) {
+        decoded.remove(tile.key);
+        BitmapPool.put(tile.bitmap);
+        tile.bitmap = null;
+    }
+
+    /**
+     * Release the decoders and tiles, call it when the view is destroyed.
+     */
+    public void recycle() {
+        if (recycled) {
+            return;
+        }
+        recycled = true;
+        ready = false;
+        waiting.clear();
+        visible.clear();
+        for (BitmapRegionDecoder decoder : idleDecoders) {
+            decoder.recycle();
+        }
+        idleDecoders.clear();
+        for (Tile tile : decoded.values()) {
+            TileCache.remove(tile);
+            BitmapPool.put(tile.bitmap);
+            tile.bitmap = null;
+        }
+        decoded.clear();
+        if (preview != null) {
+            TileCache.chargePreview(-Utils.getBytesCount(preview));
+            preview = null;
+        }
+    }
+}
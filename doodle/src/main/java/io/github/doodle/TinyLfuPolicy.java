@@ -0,0 +1,160 @@
+package io.github.doodle;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU replacement policy for {@link LruCache}.
+ * <p>
+ * New bitmaps go to a small LRU window (1% of capacity).
+ * The ones evicted from the window are candidates of the main cache (segmented LRU),
+ * a candidate is admitted only if it is more frequent (see {@link FrequencySketch}) than the victim,
+ * so that bitmaps which only display once (like scrolling a long list) don't flush the hot ones.
+ * <p>
+ * The main cache has two segments: probation (20%) and protected (80%).
+ * Entries hit in probation are promoted to protected,
+ * entries overflowing protected are demoted to probation, and the victims are taken from probation first.
+ * <p>
+ * Sizes are counted in bytes. Evicted bitmaps move to WeakCache as the LRU policy does.
+ */
+final class TinyLfuPolicy extends LruCache.Policy {
+    // Assume a bitmap is 64K on average when sizing the sketch.
+    private static final int AVERAGE_BYTES = 64 << 10;
+
+    private final Map<CacheKey, LruCache.BitmapWrapper> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<CacheKey, LruCache.BitmapWrapper> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<CacheKey, LruCache.BitmapWrapper> protectedMap = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    private long windowBytes = 0;
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+    private long capacity;
+
+    TinyLfuPolicy(long capacity) {
+        this.capacity = capacity;
+        sketch = new FrequencySketch((int) Math.min(capacity / AVERAGE_BYTES, Integer.MAX_VALUE));
+    }
+
+    private long windowMax() {
+        return capacity / 100;
+    }
+
+    private long mainMax() {
+        return capacity - windowMax();
+    }
+
+    private long protectedMax() {
+        return mainMax() * 4 / 5;
+    }
+
+    @Override
+    LruCache.BitmapWrapper get(CacheKey key) {
+        sketch.increment(key);
+        LruCache.BitmapWrapper wrapper = window.get(key);
+        if (wrapper != null) {
+            return wrapper;
+        }
+        wrapper = protectedMap.get(key);
+        if (wrapper != null) {
+            return wrapper;
+        }
+        wrapper = probation.remove(key);
+        if (wrapper != null) {
+            probationBytes -= wrapper.bytesCount;
+            protectedMap.put(key, wrapper);
+            protectedBytes += wrapper.bytesCount;
+            demoteProtected();
+        }
+        return wrapper;
+    }
+
+    @Override
+    boolean containsKey(CacheKey key) {
+        return window.containsKey(key) || probation.containsKey(key) || protectedMap.containsKey(key);
+    }
+
+    @Override
+    void put(CacheKey key, LruCache.BitmapWrapper wrapper, long capacity) {
+        this.capacity = capacity;
+        sketch.increment(key);
+        window.put(key, wrapper);
+        windowBytes += wrapper.bytesCount;
+        // Keep the newest one in window, even if it is larger than window.
+        while (windowBytes > windowMax() && window.size() > 1) {
+            Iterator<Map.Entry<CacheKey, LruCache.BitmapWrapper>> it = window.entrySet().iterator();
+            Map.Entry<CacheKey, LruCache.BitmapWrapper> eldest = it.next();
+            it.remove();
+            windowBytes -= eldest.getValue().bytesCount;
+            admit(eldest.getKey(), eldest.getValue());
+        }
+        demoteProtected();
+    }
+
+    private void admit(CacheKey key, LruCache.BitmapWrapper candidate) {
+        long mainMax = mainMax();
+        if (candidate.bytesCount > mainMax) {
+            LruCache.evict(key, candidate);
+            return;
+        }
+        int candidateFreq = sketch.frequency(key);
+        while (probationBytes + protectedBytes + candidate.bytesCount > mainMax) {
+            Map<CacheKey, LruCache.BitmapWrapper> victims = !probation.isEmpty() ? probation : protectedMap;
+            Map.Entry<CacheKey, LruCache.BitmapWrapper> victim = victims.entrySet().iterator().next();
+            if (candidateFreq <= sketch.frequency(victim.getKey())) {
+                LruCache.evict(key, candidate);
+                return;
+            }
+            removeEldest(victims);
+        }
+        probation.put(key, candidate);
+        probationBytes += candidate.bytesCount;
+    }
+
+    private void demoteProtected() {
+        long protectedMax = protectedMax();
+        while (protectedBytes > protectedMax && !protectedMap.isEmpty()) {
+            Iterator<Map.Entry<CacheKey, LruCache.BitmapWrapper>> it = protectedMap.entrySet().iterator();
+            Map.Entry<CacheKey, LruCache.BitmapWrapper> eldest = it.next();
+            it.remove();
+            protectedBytes -= eldest.getValue().bytesCount;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().bytesCount;
+        }
+    }
+
+    private void removeEldest(Map<CacheKey, LruCache.BitmapWrapper> map) {
+        Iterator<Map.Entry<CacheKey, LruCache.BitmapWrapper>> it = map.entrySet().iterator();
+        Map.Entry<CacheKey, LruCache.BitmapWrapper> eldest = it.next();
+        it.remove();
+        LruCache.BitmapWrapper wrapper = eldest.getValue();
+        if (map == probation) {
+            probationBytes -= wrapper.bytesCount;
+        } else if (map == protectedMap) {
+            protectedBytes -= wrapper.bytesCount;
+        } else {
+            windowBytes -= wrapper.bytesCount;
+        }
+        LruCache.evict(eldest.getKey(), wrapper);
+    }
+
+    @Override
+    void trimToSize(long size) {
+        // Evict the least valuable first: probation, then window, then protected.
+        while (size() > size && !probation.isEmpty()) {
+            removeEldest(probation);
+        }
+        while (size() > size && !window.isEmpty()) {
+            removeEldest(window);
+        }
+        while (size() > size && !protectedMap.isEmpty()) {
+            removeEldest(protectedMap);
+        }
+    }
+
+    @Override
+    long size() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+}
@@ -13,11 +13,18 @@ import android.view.WindowManager;
 import android.view.View;
 
 import java.util.Arrays;
+import java.util.Locale;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+
+import io.github.doodle.enums.Durability;
 
 
 final class Utils {
+    private static final int COPY_BUFFER_SIZE = 64 << 10;
+    private static final long TRANSFER_CHUNK_SIZE = 1 << 20;
+
     // Assign value by DoodleContentProvider
     static Context appContext;
 
@@ -183,6 +190,35 @@ final class Utils {
         } while (n < len);
     }
 
+    /**
+     * @return host (with port) of the url in lower case, null if it's not an url with host.
+     */
+    static String getHost(String url) {
+        if (url == null) {
+            return null;
+        }
+        int start = url.indexOf("://");
+        if (start < 0) {
+            return null;
+        }
+        start += 3;
+        int end = start;
+        int n = url.length();
+        while (end < n) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        // Skip the user info
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            start = at + 1;
+        }
+        return end > start ? url.substring(start, end).toLowerCase(Locale.US) : null;
+    }
+
     static boolean makeFileIfNotExist(File file) throws IOException {
         if (file.isFile()) {
             return true;
@@ -193,6 +229,20 @@ final class Utils {
     }
 
     static boolean streamToFile(InputStream inputStream, File dst) throws IOException {
+        return streamToFile(inputStream, dst, 0L, null);
+    }
+
+    /**
+     * Copy the stream to file and sync it.
+     * File streams (including the ones from content provider) are transferred by channel,
+     * which lets the kernel copy the data. Other streams are copied with a 64K buffer,
+     * which has less calls than 8K, but about the same throughput for network streams
+     * (see StreamCopyBenchmark in the unit tests).
+     *
+     * @param offset if it's positive, append to dst which has the first 'offset' bytes.
+     */
+    static boolean streamToFile(InputStream inputStream, File dst, long offset,
+                                Downloader.ProgressListener listener) throws IOException {
         if (inputStream == null || dst == null) {
             return false;
         }
@@ -200,24 +250,78 @@ final class Utils {
             closeQuietly(inputStream);
             return false;
         }
-        byte[] buffer = ByteArrayPool.getBasicArray();
-        FileOutputStream out = new FileOutputStream(dst);
+        FileOutputStream out = new FileOutputStream(dst, offset > 0);
+        byte[] buffer = null;
+        long written = offset;
         try {
+            if (inputStream instanceof FileInputStream) {
+                written = transferFile((FileInputStream) inputStream, out.getChannel(), dst, written, listener);
+            }
+            buffer = ByteArrayPool.getArray(COPY_BUFFER_SIZE);
             while (true) {
                 int count = inputStream.read(buffer, 0, buffer.length);
                 if (count <= 0) break;
                 out.write(buffer, 0, count);
+                if (listener != null) {
+                    written += count;
+                    listener.onProgress(dst, written);
+                }
             }
-            out.getFD().sync();
+            syncFile(out);
         } finally {
             closeQuietly(out);
             closeQuietly(inputStream);
-            ByteArrayPool.recycleBasicArray(buffer);
+            ByteArrayPool.recycleArray(buffer);
         }
         return true;
     }
 
-    static byte[] streamToBytes(InputStream inputStream) throws IOException {
+    /**
+     * Sync the file if the durability is {@link Durability#PER_FILE},
+     * otherwise it's synced by the group commit of the cache (see {@link DiskCache}), or not at all.
+     */
+    static void syncFile(FileOutputStream out) throws IOException {
+        if (Config.durability == Durability.PER_FILE) {
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Transfer the remaining of regular file, pipes (size is unknown) are left to the copying loop.
+     *
+     * @return bytes of the destination after transferring.
+     */
+    private static long transferFile(FileInputStream in, FileChannel channel, File dst, long written,
+                                     Downloader.ProgressListener listener) throws IOException {
+        FileChannel src = in.getChannel();
+        long remaining;
+        try {
+            remaining = src.size() - src.position();
+        } catch (IOException e) {
+            return written;
+        }
+        long position = channel.position();
+        while (remaining > 0) {
+            long count = channel.transferFrom(src, position, Math.min(remaining, TRANSFER_CHUNK_SIZE));
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            remaining -= count;
+            written += count;
+            if (listener != null) {
+                listener.onProgress(dst, written);
+            }
+        }
+        // transferFrom doesn't move the position of the destination.
+        channel.position(position);
+        return written;
+    }
+
+    /**
+     * Read the stream to a pooled buffer, the caller should recycle it.
+     */
+    static PooledBytes streamToPooledBytes(InputStream inputStream) throws IOException {
         final int limit = 1 << 27; // 128M
         int available = inputStream.available();
         if (available > limit) {
@@ -230,7 +334,7 @@ final class Utils {
         try {
             while (true) {
                 count = inputStream.read(buffer, off, bufLen - off);
-                if(count <= 0) break;
+                if (count <= 0) break;
                 off += count;
                 if (off == bufLen) {
                     byte[] oldBuffer = buffer;
@@ -244,9 +348,51 @@ final class Utils {
                     ByteArrayPool.recycleArray(oldBuffer);
                 }
             }
-            return Arrays.copyOf(buffer, off);
-        } finally {
+        } catch (Throwable e) {
             ByteArrayPool.recycleArray(buffer);
+            throw e;
+        }
+        return new PooledBytes(buffer, off, true);
+    }
+
+    static boolean contentEquals(File a, File b) throws IOException {
+        if (!a.exists() || !b.exists() || a.length() != b.length()) {
+            return false;
+        }
+        byte[] bufferA = ByteArrayPool.getBasicArray();
+        byte[] bufferB = ByteArrayPool.getBasicArray();
+        try (InputStream inA = new FileInputStream(a); InputStream inB = new FileInputStream(b)) {
+            while (true) {
+                int count = inA.read(bufferA, 0, bufferA.length);
+                if (count <= 0) {
+                    return true;
+                }
+                int n = 0;
+                while (n < count) {
+                    int r = inB.read(bufferB, n, count - n);
+                    if (r <= 0) {
+                        return false;
+                    }
+                    n += r;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (bufferA[i] != bufferB[i]) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            ByteArrayPool.recycleBasicArray(bufferA);
+            ByteArrayPool.recycleBasicArray(bufferB);
+        }
+    }
+
+    static byte[] streamToBytes(InputStream inputStream) throws IOException {
+        PooledBytes bytes = streamToPooledBytes(inputStream);
+        try {
+            return Arrays.copyOf(bytes.buffer, bytes.length);
+        } finally {
+            bytes.recycle();
         }
     }
 }
@@ -0,0 +1,114 @@
+package io.github.doodle;
+
+import java.util.*;
+
+import io.github.doodle.enums.ClipType;
+
+/**
+ * Index from source (with the decoding params except target size) to the cached results of different sizes,
+ * so that a smaller request could be served by downscaling a larger result, instead of decoding the source.
+ * <p>
+ * Only results without transformations are indexed (a transformation may depend on the size, like corner radius),
+ * and only the clip types which scale the whole image (FIT_CENTER, CENTER_INSIDE, CENTER_CROP).
+ * A result covers a request if its target size is not smaller in both dimensions,
+ * for CENTER_CROP, the aspect ratios of targets should be the same.
+ * <p>
+ * The index is in memory, the results it points to may have been evicted, check them when using.
+ */
+final class VariantIndex {
+    private static final int MAX_SOURCES = 512;
+    private static final int MAX_VARIANTS = 4;
+
+    private static final Map<CacheKey, List<Variant>> index =
+            new LinkedHashMap<CacheKey, List<Variant>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, List<Variant>> eldest) {
+                    return size() > MAX_SOURCES;
+                }
+            };
+
+    static boolean isEligible(Request request) {
+        ClipType clipType = request.clipType;
+        return request.targetWidth > 0 && request.targetHeight > 0
+                && (clipType == ClipType.FIT_CENTER || clipType == ClipType.CENTER_INSIDE
+                || clipType == ClipType.CENTER_CROP)
+                && (request.transformations == null || request.transformations.isEmpty());
+    }
+
+    static synchronized void add(Request request) {
+        CacheKey variantKey = request.getVariantKey();
+        if (variantKey == null) {
+            return;
+        }
+        List<Variant> list = index.get(variantKey);
+        if (list == null) {
+            list = new ArrayList<>(2);
+            index.put(variantKey, list);
+        }
+        CacheKey key = request.getKey();
+        for (Variant variant : list) {
+            if (variant.key.equals(key)) {
+                return;
+            }
+        }
+        if (list.size() >= MAX_VARIANTS) {
+            list.remove(0);
+        }
+        list.add(new Variant(key, request.targetWidth, request.targetHeight));
+    }
+
+    /**
+     * @return keys of the results which cover the request, the smallest first.
+     */
+    static synchronized List<CacheKey> find(Request request) {
+        CacheKey variantKey = request.getVariantKey();
+        List<Variant> list = variantKey != null ? index.get(variantKey) : null;
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        int w = request.targetWidth;
+        int h = request.targetHeight;
+        boolean sameRatio = request.clipType == ClipType.CENTER_CROP;
+        List<Variant> matched = new ArrayList<>(list.size());
+        for (Variant variant : list) {
+            if (variant.width >= w && variant.height >= h && !variant.key.equals(request.getKey())
+                    && (!sameRatio || (long) variant.width * h == (long) variant.height * w)) {
+                matched.add(variant);
+            }
+        }
+        Collections.sort(matched, (a, b) -> Long.compare((long) a.width * a.height, (long) b.width * b.height));
+        List<CacheKey> keys = new ArrayList<>(matched.size());
+        for (Variant variant : matched) {
+            keys.add(variant.key);
+        }
+        return keys;
+    }
+
+    static synchronized void remove(Request request, CacheKey key) {
+        CacheKey variantKey = request.getVariantKey();
+        List<Variant> list = variantKey != null ? index.get(variantKey) : null;
+        if (list != null) {
+            Iterator<Variant> it = list.iterator();
+            while (it.hasNext()) {
+                if (it.next().key.equals(key)) {
+                    it.remove();
+                }
+            }
+            if (list.isEmpty()) {
+                index.remove(variantKey);
+            }
+        }
+    }
+
+    private static class Variant {
+        final CacheKey key;
+        final int width;
+        final int height;
+
+        Variant(CacheKey key, int width, int height) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
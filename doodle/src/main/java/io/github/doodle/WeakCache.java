@@ -2,20 +2,22 @@ package io.github.doodle;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Lock free, lookups on the main thread never wait for the puts from workers.
+ */
 final class WeakCache {
-    private final Map<CacheKey, ValueReference> cache = new HashMap<>();
+    private final Map<CacheKey, ValueReference> cache = new ConcurrentHashMap<>();
     private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
 
-    synchronized Object get(CacheKey key) {
-        cleanQueue();
+    Object get(CacheKey key) {
         ValueReference reference = cache.get(key);
         return reference != null ? reference.get() : null;
     }
 
-    synchronized void put(CacheKey key, Object value) {
+    void put(CacheKey key, Object value) {
         cleanQueue();
         if (value != null) {
             ValueReference ref = cache.get(key);
@@ -28,10 +30,8 @@ final class WeakCache {
     private void cleanQueue() {
         ValueReference reference = (ValueReference) queue.poll();
         while (reference != null) {
-            ValueReference ref = cache.get(reference.key);
-            if (ref != null && ref.get() == null) {
-                cache.remove(reference.key);
-            }
+            // Only remove the cleared one, the key may be mapped to a new value.
+            cache.remove(reference.key, reference);
             reference = (ValueReference) queue.poll();
         }
     }
@@ -8,7 +8,12 @@ import android.view.View;
 
 import java.io.*;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.github.doodle.interfaces.*;
 import io.github.doodle.enums.*;
@@ -17,20 +22,29 @@ final class Worker extends ExAsyncTask {
     private static final String TAG = "Worker";
 
     private static final DiskCache resultCache = new DiskCache("/doodle/result/",
-            Config.resultMaxCount, Config.resultCapacity
+            Config.resultMaxCount, Config.resultCapacity, Config.resultPackThreshold
     );
 
     private final Request request;
 
     private boolean fromMemory = false;
     private boolean fromResultCache = false;
+    private boolean partialShown = false;
 
     private long time;
     private static final AtomicInteger count = new AtomicInteger();
 
+    // Bitmaps waiting for saving to result cache, see acquireSaving
+    private static final long SAVING_BUDGET = Runtime.getRuntime().maxMemory() / 32;
+    private static final AtomicLong savingBytes = new AtomicLong();
+    private static final Set<CacheKey> savingKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
     Worker(Request request, View view, boolean needDownloading) {
         this.request = request;
         this.needDownloading = needDownloading;
+        this.priority = request.priority;
+        this.lifo = view != null;
+        this.host = needDownloading ? Utils.getHost(request.path) : null;
         if (LogProxy.isDebug()) {
             Log.d(TAG, "Loading start, count:" + count.incrementAndGet());
         }
@@ -49,6 +63,11 @@ final class Worker extends ExAsyncTask {
         }
     }
 
+    @Override
+    protected CacheKey generateShareKey() {
+        return request.getKey();
+    }
+
     @Override
     protected Object doInBackground() {
         long startTime = System.nanoTime();
@@ -56,7 +75,7 @@ final class Worker extends ExAsyncTask {
         DecodingInfo decodingInfo = null;
         CacheKey key = request.getKey();
         try {
-            if (request.viewReference != null && getTarget() == null) {
+            if (request.viewReference != null && getTarget() == null && !hasFollowers()) {
                 // Target missed or changed request
                 return null;
             }
@@ -81,6 +100,14 @@ final class Worker extends ExAsyncTask {
                 bitmap = decodeResultCache(cacheInfo);
             }
 
+            if (bitmap == null && request.getVariantKey() != null) {
+                bitmap = decodeFromVariant();
+            }
+
+            if (bitmap == null && PartialDecoder.isEligible(request)) {
+                downloadProgressively();
+            }
+
             // Decode
             if (bitmap == null) {
                 decodingInfo = new DecodingInfo(request);
@@ -118,8 +145,13 @@ final class Worker extends ExAsyncTask {
                     boolean toWeakCache = request.memoryCacheStrategy == MemoryCacheStrategy.WEAK;
                     MemoryCache.putBitmap(key, bitmap, toWeakCache);
                 }
+                if (request.getVariantKey() != null && (request.memoryCacheStrategy != MemoryCacheStrategy.NONE
+                        || request.diskCacheStrategy.saveResult())) {
+                    VariantIndex.add(request);
+                }
                 if (!fromResultCache && request.diskCacheStrategy.saveResult()) {
-                    storeResult(request, bitmap, decodingInfo != null ? decodingInfo.dataFetcher : null);
+                    long buildTime = (System.nanoTime() - startTime) / 1000000;
+                    storeResult(request, bitmap, decodingInfo != null ? decodingInfo.dataFetcher : null, buildTime);
                 }
             }
 
@@ -147,8 +179,7 @@ final class Worker extends ExAsyncTask {
     private Bitmap decodeResultCache(DiskCache.CacheInfo cacheInfo) {
         Bitmap bitmap = null;
         try {
-            bitmap = Decoder.decodeFile(cacheInfo.path, cacheInfo.isRGB565
-                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+            bitmap = readResultCache(cacheInfo);
         } catch (Throwable e) {
             LogProxy.e(TAG, e);
         }
@@ -159,6 +190,69 @@ final class Worker extends ExAsyncTask {
         return bitmap;
     }
 
+    private static Bitmap readResultCache(DiskCache.CacheInfo cacheInfo) throws IOException {
+        Bitmap.Config config = cacheInfo.isRGB565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        if (cacheInfo.isPacked() && cacheInfo.isRaw) {
+            ByteBuffer buffer = resultCache.mapPacked(cacheInfo);
+            return buffer != null ? RawPixels.decode(buffer) : null;
+        } else if (cacheInfo.isPacked()) {
+            byte[] data = resultCache.readPacked(cacheInfo);
+            if (data == null) {
+                return null;
+            }
+            try {
+                return Decoder.decodeBytes(data, cacheInfo.getLength(), config);
+            } finally {
+                ByteArrayPool.recycleArray(data);
+            }
+        } else {
+            return cacheInfo.isRaw ? RawPixels.decodeFile(cacheInfo.path)
+                    : Decoder.decodeFile(cacheInfo.path, config);
+        }
+    }
+
+    /**
+     * Downscale a larger result of the same source, see {@link VariantIndex}.
+     */
+    private Bitmap decodeFromVariant() {
+        for (CacheKey variantKey : VariantIndex.find(request)) {
+            Bitmap source = MemoryCache.getBitmap(variantKey);
+            boolean ownSource = false;
+            if (source == null) {
+                DiskCache.CacheInfo info = resultCache.getCacheInfo(variantKey);
+                if (info != null) {
+                    try {
+                        source = readResultCache(info);
+                    } catch (Throwable e) {
+                        LogProxy.e(TAG, e);
+                    }
+                    ownSource = true;
+                }
+            }
+            if (source == null) {
+                VariantIndex.remove(request, variantKey);
+                continue;
+            }
+            return Decoder.handleScaleAndCrop(source, request, ownSource);
+        }
+        return null;
+    }
+
+    /**
+     * Download the source to the source cache, publishing partial bitmaps during downloading,
+     * the final decoding reads the cached file.
+     */
+    private void downloadProgressively() throws IOException {
+        CacheKey sourceKey = new CacheKey(request.path);
+        if (Downloader.getCachePath(sourceKey) == null) {
+            PartialDecoder partialDecoder = new PartialDecoder(request, this);
+            try {
+                Downloader.download(request.path, sourceKey, partialDecoder);
+            } finally {
+                partialDecoder.stop();
+            }
+        }
+    }
 
     private Object tryDrawableDecoders(DecodingInfo decodingInfo) {
         for (AnimatedDecoder decoder : Config.animatedDecoders) {
@@ -195,13 +289,26 @@ final class Worker extends ExAsyncTask {
         request.workerReference = null;
     }
 
+    @Override
+    protected void onProgressUpdate(Object value) {
+        View view = getTarget();
+        if (view != null && value instanceof Bitmap) {
+            if (!partialShown) {
+                Controller.stopAnimDrawable(view);
+                partialShown = true;
+            }
+            Controller.setBitmap(view, (Bitmap) value);
+        }
+    }
+
     @Override
     protected void onPostExecute(Object result) {
         logStatus("finish");
         View view = getTarget();
         clearView(view);
         try {
-            Controller.setResult(request, view, result, fromMemory);
+            // No animation after partial bitmaps, it's a refinement of the shown image.
+            Controller.setResult(request, view, result, fromMemory || partialShown);
         } catch (Throwable e) {
             LogProxy.e(TAG, e);
         }
@@ -247,9 +354,35 @@ final class Worker extends ExAsyncTask {
         return output;
     }
 
-    private static void storeResult(Request request, Bitmap bitmap, DataFetcher dataFetcher) {
+    private static void storeResult(Request request, Bitmap bitmap, DataFetcher dataFetcher, long buildTime) {
         CacheKey key = request.getKey();
+        String path = request.path;
+        // Results of local files are cheap to decode again, drop them first when the encoders fall behind.
+        boolean cheap = !path.startsWith("http");
+        // The source changed after the key was built (downloaded again), the key belongs to the old source.
+        if (!cheap && Downloader.getGeneration(path) != request.generation) {
+            return;
+        }
+        int bytes = Utils.getBytesCount(bitmap);
+        // Check with zero encoded bytes at first, to skip the encoding if the result will not be saved anyway.
+        ResultCachePolicy policy = Config.resultCachePolicy;
+        if (policy != null && !policy.shouldSave(path, buildTime, bytes, 0)) {
+            return;
+        }
+        if (!acquireSaving(key, bytes, cheap)) {
+            return;
+        }
         boolean isRGB565 = request.decodeFormat == DecodeFormat.RGB_565;
+        if (request.encodeRaw && RawPixels.isSupported(bitmap)) {
+            Scheduler.storageExecutor.execute(() -> {
+                try {
+                    saveRawResult(key, bitmap, isRGB565, path, buildTime);
+                } finally {
+                    releaseSaving(key, bytes);
+                }
+            });
+            return;
+        }
         Bitmap.CompressFormat compressFormat = request.compressFormat;
         if (compressFormat == null) {
             MediaType type;
@@ -268,24 +401,66 @@ final class Worker extends ExAsyncTask {
             }
         }
         final Bitmap.CompressFormat format = compressFormat;
-        Scheduler.storageExecutor.execute(() -> saveResult(key, bitmap, format, isRGB565));
+        Scheduler.storageExecutor.execute(() -> {
+            try {
+                saveResult(key, bitmap, format, isRGB565, path, buildTime);
+            } finally {
+                releaseSaving(key, bytes);
+            }
+        });
     }
 
-    private static void saveResult(CacheKey key, Bitmap bitmap, Bitmap.CompressFormat format, boolean isRGB565) {
+    /**
+     * The bitmaps waiting for saving are held in memory, limit their bytes.
+     * Cheap results are admitted within the budget, others within twice the budget,
+     * the first one is always admitted (even it's larger than the budget).
+     *
+     * @return false if the result should not be saved (the same key is saving, or out of budget).
+     */
+    private static boolean acquireSaving(CacheKey key, int bytes, boolean cheap) {
+        if (!savingKeys.add(key)) {
+            return false;
+        }
+        long limit = cheap ? SAVING_BUDGET : SAVING_BUDGET * 2;
+        while (true) {
+            long pending = savingBytes.get();
+            if (pending > 0 && pending + bytes > limit) {
+                savingKeys.remove(key);
+                if (LogProxy.isDebug()) {
+                    Log.d(TAG, "Drop saving result, pending bytes:" + pending);
+                }
+                return false;
+            }
+            if (savingBytes.compareAndSet(pending, pending + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private static void releaseSaving(CacheKey key, int bytes) {
+        savingBytes.addAndGet(-bytes);
+        savingKeys.remove(key);
+    }
+
+    private static void saveResult(CacheKey key, Bitmap bitmap, Bitmap.CompressFormat format, boolean isRGB565,
+                                   String path, long buildTime) {
         try {
             if (resultCache.needToSave(key)) {
-                String path = resultCache.keyToPath(key);
-                File tmpFile = new File(path + ".tmp");
-                if (Utils.makeFileIfNotExist(tmpFile)) {
-                    saveBitmap(tmpFile, bitmap, format);
-                    File file = new File(path);
-                    if (file.exists()) {
-                        // should not happen
-                        Utils.deleteQuietly(file);
+                ResultCachePolicy policy = Config.resultCachePolicy;
+                if (Config.resultPackThreshold > 0 || policy != null) {
+                    // Encode to memory at first, to see if the result is worth saving, and small enough to pack.
+                    BytesOutput output = new BytesOutput();
+                    bitmap.compress(format, getQuality(format), output);
+                    if (!shouldSave(policy, path, buildTime, bitmap, output.size())) {
+                        return;
                     }
-                    if (tmpFile.renameTo(file)) {
-                        resultCache.record(key, file, isRGB565);
+                    if (resultCache.isPackable(output.size())) {
+                        resultCache.recordPacked(key, output.getBuffer(), output.size(), isRGB565, false);
+                    } else {
+                        saveResultFile(key, isRGB565, false, out -> out.write(output.getBuffer(), 0, output.size()));
                     }
+                } else {
+                    saveResultFile(key, isRGB565, false, out -> bitmap.compress(format, getQuality(format), out));
                 }
             }
         } catch (Throwable e) {
@@ -293,16 +468,93 @@ final class Worker extends ExAsyncTask {
         }
     }
 
-    private static void saveBitmap(File file, Bitmap bitmap, Bitmap.CompressFormat format) throws IOException {
+    private static void saveRawResult(CacheKey key, Bitmap bitmap, boolean isRGB565, String path, long buildTime) {
+        try {
+            int size = RawPixels.getSize(bitmap);
+            if (resultCache.needToSave(key) && shouldSave(Config.resultCachePolicy, path, buildTime, bitmap, size)) {
+                byte[] buffer = ByteArrayPool.getArray(size);
+                try {
+                    RawPixels.encode(bitmap, buffer);
+                    if (resultCache.isPackable(size)) {
+                        resultCache.recordPacked(key, buffer, size, isRGB565, true);
+                    } else {
+                        saveResultFile(key, isRGB565, true, out -> out.write(buffer, 0, size));
+                    }
+                } finally {
+                    ByteArrayPool.recycleArray(buffer);
+                }
+            }
+        } catch (Throwable e) {
+            LogProxy.e(TAG, e);
+        }
+    }
+
+    private static boolean shouldSave(ResultCachePolicy policy, String path, long buildTime,
+                                      Bitmap bitmap, int encodedBytes) {
+        if (policy == null || policy.shouldSave(path, buildTime, Utils.getBytesCount(bitmap), encodedBytes)) {
+            return true;
+        }
+        if (LogProxy.isDebug()) {
+            Log.d(TAG, "Skip saving result, time:" + buildTime + "ms, bytes:" + encodedBytes + ", path:" + path);
+        }
+        return false;
+    }
+
+    static void warmUpCache() {
+        resultCache.warmUp();
+    }
+
+    private static void saveResultFile(CacheKey key, boolean isRGB565, boolean isRaw, DataWriter writer) throws IOException {
+        String path = resultCache.keyToPath(key);
+        File tmpFile = new File(path + ".tmp");
+        resultCache.beginEdit();
+        try {
+            if (Utils.makeFileIfNotExist(tmpFile)) {
+                writeFile(tmpFile, writer);
+                File file = new File(path);
+                if (file.exists()) {
+                    // should not happen
+                    Utils.deleteQuietly(file);
+                }
+                if (tmpFile.renameTo(file)) {
+                    resultCache.record(key, file, isRGB565, isRaw);
+                }
+            }
+        } finally {
+            resultCache.endEdit();
+        }
+    }
+
+    private static int getQuality(Bitmap.CompressFormat format) {
+        return format == Bitmap.CompressFormat.WEBP ? 100 : 95;
+    }
+
+    private static void writeFile(File file, DataWriter writer) throws IOException {
         FileOutputStream fos = new FileOutputStream(file);
         OutputStream out = new BufferedOutputStream(fos);
         try {
-            int quality = format == Bitmap.CompressFormat.WEBP ? 100 : 95;
-            bitmap.compress(format, quality, out);
+            writer.write(out);
             out.flush();
-            fos.getFD().sync();
+            Utils.syncFile(fos);
         } finally {
             Utils.closeQuietly(out);
         }
     }
+
+    private interface DataWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Expose the inner buffer, to save a copy.
+     */
+    private static class BytesOutput extends ByteArrayOutputStream {
+        BytesOutput() {
+            super(32 << 10);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
 }
@@ -0,0 +1,26 @@
+package io.github.doodle.enums;
+
+/**
+ * When the files of disk caches (and their journals) are forced to the storage device.
+ * <p>
+ * A file not synced may be lost or torn when the system crashes (not when the app process dies),
+ * the journal detects it when reconciling, and a broken cache fails to decode and is deleted,
+ * so it's a trade-off between the writing cost and the chance to download or decode again.
+ */
+public enum Durability {
+    /**
+     * Sync each file when it's written, and the journal when the writing tasks are done.
+     */
+    PER_FILE,
+
+    /**
+     * Sync the files written recently and the journal together, once per second at most.
+     * It saves the flushes when writing bursts of small files (like thumbnails).
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Never sync, leave it to the system.
+     */
+    NONE
+}
@@ -0,0 +1,18 @@
+package io.github.doodle.enums;
+
+/**
+ * Replacement policy of the memory cache (the LRU part, see {@link MemoryCacheStrategy#LRU}).
+ */
+public enum MemoryCachePolicy {
+    /**
+     * Least Recently Used, evict the bitmaps not accessed for the longest time.
+     */
+    LRU,
+
+    /**
+     * W-TinyLFU: new bitmaps stay in a small LRU window first,
+     * then only get into the main cache if they were accessed more frequently than the ones to be evicted.
+     * It keeps the hot bitmaps (avatars, icons, current page) when scrolling a long list once.
+     */
+    TINY_LFU
+}
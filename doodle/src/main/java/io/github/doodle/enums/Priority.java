@@ -0,0 +1,10 @@
+package io.github.doodle.enums;
+
+/**
+ * Priority of loading tasks, tasks with higher priority start first when they are waiting.
+ */
+public enum Priority {
+    LOW,
+    NORMAL,
+    HIGH
+}
@@ -0,0 +1,19 @@
+package io.github.doodle.interfaces;
+
+import io.github.doodle.Request;
+
+/**
+ * Items of the list for {@link io.github.doodle.LookaheadPrefetcher}, all methods are called on main thread.
+ */
+public interface LookaheadProvider {
+    int getItemCount();
+
+    /**
+     * Build the request of the item, with the same params as binding it to the view (without 'into').
+     * <p>
+     * Leave the size not set, it's taken from the items bound recently.
+     *
+     * @return request of the item, null if the item has no image.
+     */
+    Request getRequest(int position);
+}
@@ -0,0 +1,26 @@
+package io.github.doodle.interfaces;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * {@link HttpSourceFetcher} which supports resuming interrupted downloads.
+ * <p>
+ * Doodle keeps the partial data of the interrupted download (if the response has a validator),
+ * and requests the remaining part with the headers "Range" and "If-Range" next time.
+ */
+public interface RangeSourceFetcher extends HttpSourceFetcher {
+    /**
+     * @param url       The remote image url (start with "http")
+     * @param offset    Start of the range, 0 to request the whole content.
+     * @param validator Value of "If-Range" (ETag or Last-Modified), null if offset is 0.
+     * @param headers   Output, put the response headers "ETag", "Last-Modified",
+     *                  and "Content-Range" if the response is 206 (Partial Content).
+     * @return InputStream of the body, from the offset if the response is partial,
+     * otherwise the whole content (e.g. validator not matched).
+     * @throws IOException If failed to get the data.
+     */
+    InputStream getInputStream(String url, long offset, String validator, Map<String, String> headers)
+            throws IOException;
+}
@@ -0,0 +1,20 @@
+package io.github.doodle.interfaces;
+
+/**
+ * Decide whether to save a result to the result cache (disk),
+ * trading the time to rebuild the result against the bytes written to disk.
+ * <p>
+ * It's called before encoding with encodedBytes as 0 (returning false skips the encoding),
+ * and called again on the storage thread after encoding.
+ * So the decision should not turn from false to true when encodedBytes grows.
+ */
+public interface ResultCachePolicy {
+    /**
+     * @param path         path of the source
+     * @param buildTime    time to get the result (downloading, decoding and transforming), in milliseconds
+     * @param bitmapBytes  bytes of the result bitmap
+     * @param encodedBytes bytes to write to disk
+     * @return true to save the result
+     */
+    boolean shouldSave(String path, long buildTime, int bitmapBytes, int encodedBytes);
+}
@@ -0,0 +1,19 @@
+package io.github.doodle.interfaces;
+
+/**
+ * Callback of {@link io.github.doodle.TiledImage}, all methods are called on main thread.
+ */
+public interface TileListener {
+    /**
+     * Called when the source is opened (size and preview are available), or failed to open.
+     *
+     * @param success true if the image is ready to provide tiles.
+     */
+    void onReady(boolean success);
+
+    /**
+     * Called when a tile requested by {@link io.github.doodle.TiledImage#getTiles} is decoded,
+     * the view should redraw.
+     */
+    void onTileLoaded();
+}
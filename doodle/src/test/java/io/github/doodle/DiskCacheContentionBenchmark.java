@@ -0,0 +1,111 @@
+package io.github.doodle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Contention benchmark of the lookups of {@link DiskCache}.
+ * <p>
+ * Run it as a JVM program (e.g. "Run 'main()'" in Android Studio, with the unit test classpath).
+ * Every thread looks up the hot keys with {@link DiskCache#getCacheInfo(CacheKey)},
+ * and records a new key every {@link #RECORD_INTERVAL} operations, so the eviction keeps running.
+ * <p>
+ * The "locked" path wraps every call with one monitor, as the cache did before the lookups became lock-free.
+ * The eviction of the current cache runs on the maintenance executor in both paths,
+ * so the "locked" numbers are the best case of the old path (which sorted the records under the lock).
+ */
+public class DiskCacheContentionBenchmark {
+    private static final int HOT_KEYS = 1024;
+    private static final int MAX_COUNT = 4096;
+    private static final int OPS_PER_THREAD = 200_000;
+    private static final int RECORD_INTERVAL = 64;
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+    private static final int ROUNDS = 3;
+
+    private static final CacheKey[] hotKeys = new CacheKey[HOT_KEYS];
+    private static int cacheId = 0;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "doodle-bench-" + System.nanoTime());
+        Config.cachePath = dir.getPath();
+        // The cache only checks the file exists when recording, so all records share one file.
+        File data = new File(dir, "data");
+        Utils.makeFileIfNotExist(data);
+        try (FileOutputStream out = new FileOutputStream(data)) {
+            out.write(new byte[100]);
+        }
+        for (int i = 0; i < HOT_KEYS; i++) {
+            hotKeys[i] = new CacheKey("hot" + i);
+        }
+
+        // Warm up the JIT
+        run(4, false, data);
+        run(4, true, data);
+
+        System.out.println("threads  lock-free(ops/ms)  locked(ops/ms)");
+        for (int threads : THREADS) {
+            double lockFree = 0;
+            double locked = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                lockFree = Math.max(lockFree, run(threads, false, data));
+                locked = Math.max(locked, run(threads, true, data));
+            }
+            System.out.println(String.format("%7d  %17.0f  %14.0f", threads, lockFree, locked));
+        }
+        // The cache files are left in the temporary directory.
+        System.exit(0);
+    }
+
+    /**
+     * @return operations per millisecond of all threads.
+     */
+    private static double run(int threadCount, boolean locked, File data) throws Exception {
+        DiskCache cache = new DiskCache("/bench" + (cacheId++) + "/", MAX_COUNT, 1L << 30);
+        for (int i = 0; i < HOT_KEYS; i++) {
+            cache.record(hotKeys[i], data, false);
+        }
+        Object lock = new Object();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int id = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    int seed = id * 0x9E3779B9;
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        if (i % RECORD_INTERVAL == 0) {
+                            CacheKey key = new CacheKey("new" + id + "_" + i);
+                            if (locked) {
+                                synchronized (lock) {
+                                    cache.record(key, data, false);
+                                }
+                            } else {
+                                cache.record(key, data, false);
+                            }
+                        } else {
+                            seed = seed * 1103515245 + 12345;
+                            CacheKey key = hotKeys[(seed >>> 8) % HOT_KEYS];
+                            if (locked) {
+                                synchronized (lock) {
+                                    cache.getCacheInfo(key);
+                                }
+                            } else {
+                                cache.getCacheInfo(key);
+                            }
+                        }
+                    }
+                } catch (InterruptedException ignore) {
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - t0;
+        return (double) threadCount * OPS_PER_THREAD * 1000000L / elapsed;
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.doodle;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import io.github.doodle.enums.Durability;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Crash recovery of {@link DiskCache}: checking the records against the files, and the group commit.
+ */
+public class DiskCacheRecoveryTest {
+    private final Durability durability = Config.durability;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        if (Config.cachePath == null) {
+            Config.cachePath = Files.createTempDirectory("doodle-test").toString();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Config.durability = durability;
+    }
+
+    private static String newPath() {
+        return "/recovery/" + System.nanoTime() + "/";
+    }
+
+    private static File save(DiskCache cache, CacheKey key, int len) throws IOException {
+        File file = new File(cache.keyToPath(key));
+        cache.beginEdit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[len]);
+            Utils.syncFile(out);
+        }
+        cache.record(key, file, false);
+        cache.endEdit();
+        return file;
+    }
+
+    /**
+     * @return true if the journal is marked clean within the timeout.
+     */
+    private static boolean awaitClean(String path) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (true) {
+            try (RandomAccessFile journal = new RandomAccessFile(Utils.getCachePath() + path + "journal", "r")) {
+                journal.seek(8);
+                if (journal.readInt() == 1) {
+                    return true;
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void dropRecordOfTruncatedFile() throws Exception {
+        String path = newPath();
+        DiskCache cache = new DiskCache(path, 100, 1 << 20);
+        CacheKey truncated = new CacheKey("truncated");
+        CacheKey intact = new CacheKey("intact");
+        File file = save(cache, truncated, 1000);
+        save(cache, intact, 1000);
+        // Not reconciled at next start, the record is checked at the lookup.
+        assertTrue(awaitClean(path));
+
+        // The record has non-zero size, but the file lost its tail in the crash.
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "rw")) {
+            accessFile.setLength(500);
+        }
+        DiskCache reopened = new DiskCache(path, 100, 1 << 20);
+        assertNull(reopened.getCacheInfo(truncated));
+        assertFalse(file.exists());
+        assertTrue(reopened.needToSave(truncated));
+        assertNotNull(reopened.getCacheInfo(intact));
+    }
+
+    @Test
+    public void dropRecordOfMissingFile() throws IOException {
+        String path = newPath();
+        DiskCache cache = new DiskCache(path, 100, 1 << 20);
+        CacheKey key = new CacheKey("missing");
+        File file = save(cache, key, 1000);
+        assertTrue(file.delete());
+
+        DiskCache reopened = new DiskCache(path, 100, 1 << 20);
+        assertNull(reopened.getPath(key));
+        assertTrue(reopened.needToSave(key));
+    }
+
+    @Test
+    public void groupCommitWithoutMainThread() throws Exception {
+        Config.durability = Durability.GROUP_COMMIT;
+        String path = newPath();
+        DiskCache cache = new DiskCache(path, 100, 1 << 20);
+        save(cache, new CacheKey("committed"), 1000);
+
+        // No main looper here, the delayed commit runs on the maintenance executor.
+        assertTrue(awaitClean(path));
+    }
+}
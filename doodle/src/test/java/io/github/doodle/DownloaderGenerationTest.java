@@ -0,0 +1,97 @@
+package io.github.doodle;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Generations of the source, which are folded into the keys of results.
+ */
+public class DownloaderGenerationTest {
+    private HttpServer server;
+    private String url;
+    private volatile String eTag = "\"v1\"";
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        if (Config.cachePath == null) {
+            Config.cachePath = Files.createTempDirectory("doodle-test").toString();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = ("content of " + eTag).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("ETag", eTag);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/" + System.nanoTime();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void generationKeptWhenDownloadedAgainUnchanged() throws IOException {
+        CacheKey key = new CacheKey(url);
+        Downloader.download(url, key);
+        assertEquals(0, Downloader.getGeneration(url));
+
+        // Evicted, and downloaded again with the same ETag.
+        Downloader.sourceCache.delete(key);
+        assertEquals(0, Downloader.getGeneration(url));
+        Downloader.download(url, key);
+        assertEquals(0, Downloader.getGeneration(url));
+    }
+
+    @Test
+    public void generationIncreasedWhenDownloadedAgainChanged() throws IOException {
+        CacheKey key = new CacheKey(url);
+        Downloader.download(url, key);
+        assertEquals(0, Downloader.getGeneration(url));
+
+        Downloader.sourceCache.delete(key);
+        eTag = "\"v2\"";
+        Downloader.download(url, key);
+        assertEquals(1, Downloader.getGeneration(url));
+
+        // Never back to 0, even if the source changes back.
+        Downloader.sourceCache.delete(key);
+        eTag = "\"v1\"";
+        Downloader.download(url, key);
+        assertEquals(2, Downloader.getGeneration(url));
+    }
+
+    @Test
+    public void retiredGenerationPersisted() throws IOException {
+        CacheKey key = new CacheKey(url);
+        Downloader.download(url, key);
+        Downloader.sourceCache.delete(key);
+        eTag = "\"v2\"";
+        Downloader.download(url, key);
+        Downloader.sourceCache.delete(key);
+
+        // A new instance reads the side table, as the next process does.
+        DiskCache cache = new DiskCache("/doodle/source/", Config.sourceMaxCount, Config.sourceCapacity);
+        DiskCache.Validator validator = cache.getLastValidator(key);
+        assertEquals(1, validator.generation);
+        assertEquals("\"v2\"", validator.eTag);
+    }
+}
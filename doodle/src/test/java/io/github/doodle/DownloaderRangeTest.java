@@ -0,0 +1,190 @@
+package io.github.doodle;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Resuming downloads with "Range" and "If-Range", against a local http server.
+ */
+public class DownloaderRangeTest {
+    private static final int BODY_SIZE = 300 << 10;
+    private static final int BREAK_AT = 150 << 10;
+
+    private HttpServer server;
+    private String baseUrl;
+
+    // Behaviors of the server
+    private volatile byte[] body;
+    private volatile String eTag = "\"v1\"";
+    private volatile boolean breakNext = false;
+    private volatile boolean rangeNotSatisfiable = false;
+    // "Range" and "If-Range" of the requests
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        if (Config.cachePath == null) {
+            Config.cachePath = Files.createTempDirectory("doodle-test").toString();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        body = randomBytes(1);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/" + System.nanoTime();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        requests.add(range + " " + ifRange);
+        byte[] data = body;
+        exchange.getResponseHeaders().add("ETag", eTag);
+        int start = 0;
+        if (range != null && rangeNotSatisfiable) {
+            exchange.sendResponseHeaders(416, -1);
+            exchange.close();
+            return;
+        }
+        if (range != null && eTag.equals(ifRange)) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            exchange.getResponseHeaders().add("Content-Range",
+                    "bytes " + start + "-" + (data.length - 1) + "/" + data.length);
+            exchange.sendResponseHeaders(206, 0);
+        } else {
+            exchange.sendResponseHeaders(200, 0);
+        }
+        OutputStream out = exchange.getResponseBody();
+        if (breakNext) {
+            breakNext = false;
+            out.write(data, start, BREAK_AT);
+            out.flush();
+            // Close the connection without finishing the chunked body.
+            throw new IOException("Break the response");
+        }
+        out.write(data, start, data.length - start);
+        out.close();
+    }
+
+    private static byte[] randomBytes(long seed) {
+        byte[] bytes = new byte[BODY_SIZE];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static File getPartFile(CacheKey key) {
+        return new File(Downloader.sourceCache.keyToPath(key) + DiskCache.PARTIAL_SUFFIX);
+    }
+
+    private static void downloadExpectingFailure(String url, CacheKey key) {
+        try {
+            Downloader.download(url, key);
+            fail("The download should be broken");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void getRangeStart() {
+        assertEquals(100L, Downloader.getRangeStart("bytes 100-999/1000"));
+        assertEquals(0L, Downloader.getRangeStart("bytes 0-999/*"));
+        assertEquals(-1L, Downloader.getRangeStart(null));
+        assertEquals(-1L, Downloader.getRangeStart("bytes */1000"));
+        assertEquals(-1L, Downloader.getRangeStart("items 100-999/1000"));
+        assertEquals(-1L, Downloader.getRangeStart("bytes x-999/1000"));
+    }
+
+    @Test
+    public void resumeFromPartialFile() throws IOException {
+        String url = baseUrl;
+        CacheKey key = new CacheKey(url);
+        breakNext = true;
+        downloadExpectingFailure(url, key);
+        File partFile = getPartFile(key);
+        assertTrue(partFile.length() >= BREAK_AT);
+
+        long offset = partFile.length();
+        File file = Downloader.download(url, key);
+        assertArrayEquals(body, Files.readAllBytes(file.toPath()));
+        assertFalse(partFile.exists());
+        assertEquals("null null", requests.get(0));
+        assertEquals("bytes=" + offset + "- \"v1\"", requests.get(1));
+    }
+
+    @Test
+    public void restartWhenSourceChanged() throws IOException {
+        String url = baseUrl;
+        CacheKey key = new CacheKey(url);
+        breakNext = true;
+        downloadExpectingFailure(url, key);
+        assertTrue(getPartFile(key).exists());
+
+        // If-Range doesn't match, the server responds 200 with the whole new content.
+        eTag = "\"v2\"";
+        body = randomBytes(2);
+        File file = Downloader.download(url, key);
+        assertArrayEquals(body, Files.readAllBytes(file.toPath()));
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(1).endsWith("\"v1\""));
+    }
+
+    @Test
+    public void restartWhenRangeNotSatisfiable() throws IOException {
+        String url = baseUrl;
+        CacheKey key = new CacheKey(url);
+        breakNext = true;
+        downloadExpectingFailure(url, key);
+        assertTrue(getPartFile(key).exists());
+
+        // 416 to the range request, then retried without range.
+        rangeNotSatisfiable = true;
+        File file = Downloader.download(url, key);
+        assertArrayEquals(body, Files.readAllBytes(file.toPath()));
+        assertEquals(3, requests.size());
+        assertTrue(requests.get(1).startsWith("bytes="));
+        assertEquals("null null", requests.get(2));
+    }
+
+    @Test
+    public void noPartialFileWithoutValidator() throws IOException {
+        String url = baseUrl;
+        CacheKey key = new CacheKey(url);
+        // Weak ETag can't be used in If-Range, and there is no Last-Modified.
+        eTag = "W/\"v1\"";
+        breakNext = true;
+        downloadExpectingFailure(url, key);
+        assertFalse(getPartFile(key).exists());
+
+        File file = Downloader.download(url, key);
+        assertArrayEquals(body, Files.readAllBytes(file.toPath()));
+        assertEquals("null null", requests.get(1));
+    }
+}
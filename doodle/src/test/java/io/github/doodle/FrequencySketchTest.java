@@ -0,0 +1,64 @@
+package io.github.doodle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrequencySketchTest {
+    // expectedSize 64 makes 1024 counters, and the sample size is 640.
+    private static final int EXPECTED_SIZE = 64;
+    private static final int SAMPLE_SIZE = 640;
+
+    @Test
+    public void estimateCountsIncrements() {
+        FrequencySketch sketch = new FrequencySketch(EXPECTED_SIZE);
+        CacheKey key = new CacheKey("a");
+        assertEquals(0, sketch.frequency(key));
+        for (int i = 1; i <= 5; i++) {
+            sketch.increment(key);
+            assertEquals(i, sketch.frequency(key));
+        }
+    }
+
+    @Test
+    public void estimateNeverUnderCounts() {
+        FrequencySketch sketch = new FrequencySketch(EXPECTED_SIZE);
+        // Fill the sketch with other keys, collisions only raise the estimates.
+        for (int i = 0; i < 200; i++) {
+            sketch.increment(new CacheKey("other" + i));
+        }
+        CacheKey key = new CacheKey("a");
+        for (int i = 0; i < 3; i++) {
+            sketch.increment(key);
+        }
+        assertTrue(sketch.frequency(key) >= 3);
+    }
+
+    @Test
+    public void counterSaturates() {
+        FrequencySketch sketch = new FrequencySketch(EXPECTED_SIZE);
+        CacheKey key = new CacheKey("a");
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(key);
+        }
+        assertEquals(15, sketch.frequency(key));
+    }
+
+    @Test
+    public void agingHalvesCounters() {
+        FrequencySketch sketch = new FrequencySketch(EXPECTED_SIZE);
+        CacheKey hot = new CacheKey("hot");
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(hot);
+        }
+        // Additions to saturated counters don't count, so the reset may come a little later than the sample size.
+        int additions = 15;
+        while (sketch.frequency(hot) == 15 && additions < SAMPLE_SIZE * 2) {
+            sketch.increment(new CacheKey("other" + additions));
+            additions++;
+        }
+        assertTrue(additions >= SAMPLE_SIZE && additions < SAMPLE_SIZE + 16);
+        assertEquals(7, sketch.frequency(hot));
+    }
+}
@@ -0,0 +1,112 @@
+package io.github.doodle;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replay access traces on the replacement policies of {@link LruCache}, and compare the hit rates.
+ * <p>
+ * Run it as a JVM program (e.g. "Run 'main()'" in Android Studio, with the unit test classpath):
+ * <ul>
+ * <li>without arguments, replay synthetic traces: Zipf(0.9) over 1000 keys of 100K,
+ * mixed with one-off keys (like scrolling a long list) at some ratios.</li>
+ * <li>with the path of a trace file and the capacity in MB, replay the trace.
+ * Each line of the file is an access: the key (any string, e.g. the url with the target size),
+ * and optionally the bytes count of the bitmap, separated by a space or comma.</li>
+ * </ul>
+ * Both policies get the same capacity, and a miss puts the key, as {@link MemoryCache} does after decoding.
+ */
+public class MemoryCachePolicyBenchmark {
+    private static final int DEFAULT_BYTES = 100 << 10;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2) {
+            Access[] trace = readTrace(args[0]);
+            long capacity = Long.parseLong(args[1]) << 20;
+            System.out.println("trace " + args[0] + ", accesses " + trace.length + ", capacity " + args[1] + "M");
+            report("trace", trace, capacity);
+        } else {
+            long capacity = 20L << 20;
+            System.out.println("synthetic, accesses 400000, capacity 20M");
+            for (double scanRatio : new double[]{0.0, 0.3, 0.5, 0.7}) {
+                report(String.format("scan %.1f", scanRatio), syntheticTrace(400000, scanRatio, 42), capacity);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void report(String name, Access[] trace, long capacity) {
+        double lru = replay(new LruCache.LruPolicy(), trace, capacity);
+        double tinyLfu = replay(new TinyLfuPolicy(capacity), trace, capacity);
+        System.out.println(String.format("%s: LRU %.1f%%, TinyLFU %.1f%%", name, lru * 100, tinyLfu * 100));
+    }
+
+    /**
+     * @return hit rate
+     */
+    static double replay(LruCache.Policy policy, Access[] trace, long capacity) {
+        int hits = 0;
+        for (Access access : trace) {
+            if (policy.get(access.key) != null) {
+                hits++;
+            } else {
+                policy.put(access.key, new LruCache.BitmapWrapper(null, access.bytes), capacity);
+            }
+        }
+        return trace.length == 0 ? 0 : (double) hits / trace.length;
+    }
+
+    static Access[] syntheticTrace(int n, double scanRatio, long seed) {
+        Random random = new Random(seed);
+        double[] cdf = new double[1000];
+        double sum = 0;
+        for (int i = 0; i < cdf.length; i++) {
+            sum += 1 / Math.pow(i + 1, 0.9);
+            cdf[i] = sum;
+        }
+        Access[] trace = new Access[n];
+        int scanKey = 0;
+        for (int i = 0; i < n; i++) {
+            String key;
+            if (random.nextDouble() < scanRatio) {
+                key = "scan" + (scanKey++);
+            } else {
+                int k = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                key = "hot" + (k < 0 ? -k - 1 : k);
+            }
+            trace[i] = new Access(new CacheKey(key), DEFAULT_BYTES);
+        }
+        return trace;
+    }
+
+    private static Access[] readTrace(String path) throws Exception {
+        List<Access> list = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("[ ,]+");
+                int bytes = parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT_BYTES;
+                list.add(new Access(new CacheKey(parts[0]), bytes));
+            }
+        }
+        return list.toArray(new Access[0]);
+    }
+
+    static final class Access {
+        final CacheKey key;
+        final int bytes;
+
+        Access(CacheKey key, int bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+}
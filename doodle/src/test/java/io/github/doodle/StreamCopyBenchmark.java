@@ -0,0 +1,150 @@
+package io.github.doodle;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Throughput of the stream copying in {@link Utils}, against the code it replaced.
+ * <p>
+ * Run it as a JVM program (e.g. "Run 'main()'" in Android Studio, with the unit test classpath),
+ * optionally with the size of the large body in MB (default 64):
+ * <ul>
+ * <li>file to file: {@link Utils#streamToFile} transfers the file stream by channel.</li>
+ * <li>http to file: a chunked response from a local server, copied with the 64K buffer.</li>
+ * <li>file to bytes: small files read by {@link Utils#streamToPooledBytes},
+ * against reading to a pooled buffer then trimming a copy (the old streamToBytes).</li>
+ * </ul>
+ * Both sides sync the destination as {@link Config#durability} says, best of the rounds are printed.
+ */
+public class StreamCopyBenchmark {
+    private static final int ROUNDS = 7;
+    private static final int SMALL_SIZE = 200 << 10;
+    private static final int SMALL_READS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 64) << 20;
+        File dir = Files.createTempDirectory("doodle-copy").toFile();
+        byte[] body = new byte[size];
+        new Random(1).nextBytes(body);
+        File src = new File(dir, "src");
+        try (FileOutputStream out = new FileOutputStream(src)) {
+            out.write(body);
+        }
+        File dst = new File(dir, "dst");
+
+        System.out.println("body " + (size >> 20) + "M, durability " + Config.durability);
+        long[] times = new long[2];
+        Arrays.fill(times, Long.MAX_VALUE);
+        for (int i = 0; i < ROUNDS; i++) {
+            times[0] = Math.min(times[0], time(() -> Utils.streamToFile(new FileInputStream(src), dst)));
+            times[1] = Math.min(times[1], time(() -> plainCopy(new FileInputStream(src), dst)));
+        }
+        report("file to file", size, times);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            for (int off = 0; off < body.length; off += 16 << 10) {
+                out.write(body, off, Math.min(16 << 10, body.length - off));
+            }
+            out.close();
+        });
+        server.start();
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        Arrays.fill(times, Long.MAX_VALUE);
+        for (int i = 0; i < ROUNDS; i++) {
+            times[0] = Math.min(times[0], time(() -> Utils.streamToFile(open(url), dst)));
+            times[1] = Math.min(times[1], time(() -> plainCopy(open(url), dst)));
+        }
+        server.stop(0);
+        report("http to file", size, times);
+
+        File small = new File(dir, "small");
+        try (FileOutputStream out = new FileOutputStream(small)) {
+            out.write(body, 0, SMALL_SIZE);
+        }
+        Arrays.fill(times, Long.MAX_VALUE);
+        for (int i = 0; i < ROUNDS; i++) {
+            times[0] = Math.min(times[0], time(() -> {
+                for (int j = 0; j < SMALL_READS; j++) {
+                    try (InputStream in = new FileInputStream(small)) {
+                        Utils.streamToPooledBytes(in).recycle();
+                    }
+                }
+            }));
+            times[1] = Math.min(times[1], time(() -> {
+                for (int j = 0; j < SMALL_READS; j++) {
+                    try (InputStream in = new FileInputStream(small)) {
+                        PooledBytes bytes = Utils.streamToPooledBytes(in);
+                        byte[] trimmed = Arrays.copyOf(bytes.buffer, bytes.length);
+                        bytes.recycle();
+                        if (trimmed.length != SMALL_SIZE) {
+                            throw new IllegalStateException();
+                        }
+                    }
+                }
+            }));
+        }
+        report("file to bytes x" + SMALL_READS, (long) SMALL_SIZE * SMALL_READS, times);
+
+        for (File file : new File[]{src, dst, small, dir}) {
+            file.delete();
+        }
+        System.exit(0);
+    }
+
+    private static InputStream open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        return connection.getInputStream();
+    }
+
+    /**
+     * The copying loop before: 8K buffer for all streams.
+     */
+    private static void plainCopy(InputStream in, File dst) throws IOException {
+        byte[] buffer = ByteArrayPool.getBasicArray();
+        try (FileOutputStream out = new FileOutputStream(dst)) {
+            while (true) {
+                int count = in.read(buffer, 0, buffer.length);
+                if (count <= 0) break;
+                out.write(buffer, 0, count);
+            }
+            Utils.syncFile(out);
+        } finally {
+            in.close();
+            ByteArrayPool.recycleBasicArray(buffer);
+        }
+    }
+
+    private static long time(Task task) throws IOException {
+        long start = System.nanoTime();
+        task.run();
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, long bytes, long[] times) {
+        System.out.println(String.format("%s: shipped %.1f ms (%.0f MB/s), before %.1f ms (%.0f MB/s)", name,
+                times[0] / 1e6, throughput(bytes, times[0]), times[1] / 1e6, throughput(bytes, times[1])));
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return bytes * 1e9 / (1 << 20) / nanos;
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+}